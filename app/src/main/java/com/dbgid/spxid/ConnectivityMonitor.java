@@ -0,0 +1,332 @@
+package com.dbgid.spxid;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.net.NetworkRequest;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+final class ConnectivityMonitor {
+
+    interface Listener {
+        void onConnectivityChanged(State previous, State current);
+    }
+
+    private static final String TAG = "ConnectivityMonitor";
+    private static final int PROBE_TIMEOUT_MS = 5000;
+    private static final long REPROBE_INITIAL_MS = 2000L;
+    private static final long REPROBE_MAX_MS = 60000L;
+
+    private final Context context;
+    private final ConnectivityManager connectivityManager;
+    private final String probeUrl;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService probeExecutor = Executors.newSingleThreadExecutor();
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private volatile State state = State.DISCONNECTED;
+    private int probeGeneration;
+    private long reprobeDelayMs = REPROBE_INITIAL_MS;
+    private final Runnable reprobe = new Runnable() {
+        @Override
+        public void run() {
+            probe();
+        }
+    };
+
+    ConnectivityMonitor(Context context, String probeUrl) {
+        this.context = context.getApplicationContext();
+        this.connectivityManager = (ConnectivityManager) this.context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        this.probeUrl = probeUrl;
+    }
+
+    void start() {
+        if (connectivityManager == null) {
+            return;
+        }
+        update(readActiveState());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            connectivityManager.registerDefaultNetworkCallback(new ConnectivityManager.NetworkCallback() {
+                @Override
+                public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+                    update(fromCapabilities(network, capabilities));
+                }
+
+                @Override
+                public void onLost(Network network) {
+                    update(State.DISCONNECTED);
+                }
+            });
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            NetworkRequest request = new NetworkRequest.Builder()
+                    .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                    .build();
+            connectivityManager.registerNetworkCallback(request, new ConnectivityManager.NetworkCallback() {
+                @Override
+                public void onAvailable(Network network) {
+                    update(readActiveState());
+                }
+
+                @Override
+                public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+                    update(readActiveState());
+                }
+
+                @Override
+                public void onLost(Network network) {
+                    update(readActiveState());
+                }
+            });
+        } else {
+            context.registerReceiver(new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    update(readActiveState());
+                }
+            }, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+        }
+    }
+
+    State getState() {
+        return state;
+    }
+
+    boolean isOnline() {
+        return state.isOnline();
+    }
+
+    void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    void probe() {
+        final int generation;
+        synchronized (this) {
+            generation = ++probeGeneration;
+        }
+        probeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean reachable = isReachable();
+                synchronized (ConnectivityMonitor.this) {
+                    if (generation != probeGeneration) {
+                        return;
+                    }
+                }
+                State current = state;
+                if (current.connected) {
+                    update(current.withReachable(reachable ? Boolean.TRUE : Boolean.FALSE));
+                }
+                if (reachable || !current.connected) {
+                    cancelReprobe();
+                } else {
+                    scheduleReprobe();
+                }
+            }
+        });
+    }
+
+    /**
+     * The network callbacks stay quiet while a connected network cannot
+     * reach the site, so nothing else would notice it coming back. Probes
+     * again after 2 s, doubling up to a minute.
+     */
+    private void scheduleReprobe() {
+        long delay;
+        synchronized (this) {
+            delay = reprobeDelayMs;
+            reprobeDelayMs = Math.min(REPROBE_MAX_MS, reprobeDelayMs * 2);
+        }
+        mainHandler.removeCallbacks(reprobe);
+        mainHandler.postDelayed(reprobe, delay);
+    }
+
+    private void cancelReprobe() {
+        synchronized (this) {
+            reprobeDelayMs = REPROBE_INITIAL_MS;
+        }
+        mainHandler.removeCallbacks(reprobe);
+    }
+
+    /**
+     * Any HTTP answer, a 5xx or a redirect included, means the network
+     * reaches the server; only a failed connection counts as offline.
+     * Captive portals are left to NET_CAPABILITY_VALIDATED.
+     */
+
+    private boolean isReachable() {
+        HttpURLConnection connection = null;
+        try {
+            URL url = new URL(probeUrl);
+            connection = (HttpURLConnection) url.openConnection();
+            connection.setRequestMethod("HEAD");
+            connection.setInstanceFollowRedirects(false);
+            connection.setConnectTimeout(PROBE_TIMEOUT_MS);
+            connection.setReadTimeout(PROBE_TIMEOUT_MS);
+            connection.setUseCaches(false);
+            return connection.getResponseCode() > 0;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private void update(State next) {
+        final State previous;
+        synchronized (this) {
+            previous = state;
+            // A probe result only holds for the network it ran on; after a
+            // Wi-Fi to cellular handover the old FALSE would keep us offline
+            // until the next reprobe.
+            if (next.connected && previous.connected && next.reachable == null
+                    && next.isSameNetwork(previous)) {
+                next = next.withReachable(previous.reachable);
+            }
+            if (next.equals(previous)) {
+                return;
+            }
+            state = next;
+        }
+        final State current = next;
+        boolean networkChanged = !current.isSameNetwork(previous);
+        if (!current.connected || networkChanged) {
+            cancelReprobe();
+        }
+        if (current.equalsIgnoringBandwidth(previous)) {
+            // The link estimate moves every few seconds on cellular; nobody
+            // listens for that, getState() just keeps the latest.
+            return;
+        }
+        Log.i(TAG, current.toString());
+        if (current.connected && (!previous.connected || networkChanged || current.validated != previous.validated)) {
+            probe();
+        }
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Listener listener : listeners) {
+                    listener.onConnectivityChanged(previous, current);
+                }
+            }
+        });
+    }
+
+    private State readActiveState() {
+        if (connectivityManager == null) {
+            return State.DISCONNECTED;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            Network network = connectivityManager.getActiveNetwork();
+            if (network == null) {
+                return State.DISCONNECTED;
+            }
+            NetworkCapabilities caps = connectivityManager.getNetworkCapabilities(network);
+            return caps != null ? fromCapabilities(network, caps) : State.DISCONNECTED;
+        }
+        NetworkInfo info = connectivityManager.getActiveNetworkInfo();
+        if (info == null || !info.isConnected()) {
+            return State.DISCONNECTED;
+        }
+        // Before Marshmallow the type plus the SSID or APN tells networks apart.
+        return new State(info.getType() + ":" + info.getExtraInfo(), true,
+                connectivityManager.isActiveNetworkMetered(), 0, 0, null);
+    }
+
+    private static State fromCapabilities(Network network, NetworkCapabilities caps) {
+        boolean connected = caps.hasTransport(NetworkCapabilities.TRANSPORT_WIFI)
+                || caps.hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR)
+                || caps.hasTransport(NetworkCapabilities.TRANSPORT_ETHERNET)
+                || caps.hasTransport(NetworkCapabilities.TRANSPORT_VPN);
+        if (!connected || !caps.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)) {
+            return State.DISCONNECTED;
+        }
+        boolean validated = Build.VERSION.SDK_INT < Build.VERSION_CODES.M
+                || (caps.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED)
+                && !caps.hasCapability(NetworkCapabilities.NET_CAPABILITY_CAPTIVE_PORTAL));
+        boolean metered = !caps.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED);
+        return new State(network.toString(), validated, metered, caps.getLinkDownstreamBandwidthKbps(),
+                caps.getLinkUpstreamBandwidthKbps(), null);
+    }
+
+    static final class State {
+        static final State DISCONNECTED = new State(null, false, false, 0, 0, null);
+
+        final boolean connected;
+        // Identifies the network; null when disconnected.
+        final String network;
+        final boolean validated;
+        final boolean metered;
+        final int downstreamKbps;
+        final int upstreamKbps;
+        final Boolean reachable;
+
+        State(String network, boolean validated, boolean metered, int downstreamKbps, int upstreamKbps,
+              Boolean reachable) {
+            this.network = network;
+            this.connected = network != null;
+            this.validated = validated;
+            this.metered = metered;
+            this.downstreamKbps = downstreamKbps;
+            this.upstreamKbps = upstreamKbps;
+            this.reachable = reachable;
+        }
+
+        boolean isOnline() {
+            return connected && validated && !Boolean.FALSE.equals(reachable);
+        }
+
+        State withReachable(Boolean value) {
+            return new State(network, validated, metered, downstreamKbps, upstreamKbps, value);
+        }
+
+        boolean isSameNetwork(State other) {
+            return network == null ? other.network == null : network.equals(other.network);
+        }
+
+        boolean equalsIgnoringBandwidth(State other) {
+            return isSameNetwork(other) && validated == other.validated && metered == other.metered
+                    && (reachable == null ? other.reachable == null : reachable.equals(other.reachable));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof State)) {
+                return false;
+            }
+            State other = (State) o;
+            return equalsIgnoringBandwidth(other)
+                    && downstreamKbps == other.downstreamKbps && upstreamKbps == other.upstreamKbps;
+        }
+
+        @Override
+        public int hashCode() {
+            return (connected ? 1 : 0) + (validated ? 2 : 0) + (metered ? 4 : 0) + 31 * downstreamKbps;
+        }
+
+        @Override
+        public String toString() {
+            return "connected=" + connected + " network=" + network + " validated=" + validated
+                    + " metered=" + metered + " down=" + downstreamKbps + "kbps up=" + upstreamKbps + "kbps reachable=" + reachable;
+        }
+    }
+}
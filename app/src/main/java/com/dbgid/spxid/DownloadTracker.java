@@ -0,0 +1,156 @@
+package com.dbgid.spxid;
+
+import android.app.DownloadManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.os.SystemClock;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+final class DownloadTracker {
+
+    private static final String PREFS_NAME = "download_tracker";
+    private static final String KEY_IDS = "ids";
+
+    private final DownloadManager downloadManager;
+    private final SharedPreferences prefs;
+    private final Set<Long> ids = new HashSet<Long>();
+    private final Map<Long, Long> enqueuedAt = new HashMap<Long, Long>();
+
+    DownloadTracker(Context context, DownloadManager downloadManager) {
+        this.downloadManager = downloadManager;
+        this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        for (String value : prefs.getStringSet(KEY_IDS, new HashSet<String>())) {
+            try {
+                ids.add(Long.parseLong(value));
+            } catch (NumberFormatException ignored) {
+            }
+        }
+    }
+
+    synchronized void track(long id) {
+        if (id != -1L && ids.add(id)) {
+            enqueuedAt.put(id, SystemClock.elapsedRealtime());
+            save();
+        }
+    }
+
+    /** Milliseconds since this process enqueued the download, or -1 if it was enqueued elsewhere. */
+    synchronized long getElapsedMillis(long id) {
+        Long startedAt = enqueuedAt.get(id);
+        return startedAt != null ? SystemClock.elapsedRealtime() - startedAt : -1L;
+    }
+
+    synchronized boolean isTracked(long id) {
+        return ids.contains(id);
+    }
+
+    synchronized void untrack(long id) {
+        enqueuedAt.remove(id);
+        if (ids.remove(id)) {
+            save();
+        }
+    }
+
+    synchronized int size() {
+        return ids.size();
+    }
+
+    Snapshot poll() {
+        long[] tracked;
+        synchronized (this) {
+            tracked = new long[ids.size()];
+            int i = 0;
+            for (Long id : ids) {
+                tracked[i++] = id;
+            }
+        }
+        Snapshot snapshot = new Snapshot();
+        if (tracked.length == 0 || downloadManager == null) {
+            return snapshot;
+        }
+        Set<Long> seen = new HashSet<Long>();
+        DownloadManager.Query query = new DownloadManager.Query();
+        query.setFilterById(tracked);
+        Cursor cursor = null;
+        try {
+            cursor = downloadManager.query(query);
+            if (cursor == null) {
+                return snapshot;
+            }
+            int idIndex = cursor.getColumnIndex(DownloadManager.COLUMN_ID);
+            int statusIndex = cursor.getColumnIndex(DownloadManager.COLUMN_STATUS);
+            int soFarIndex = cursor.getColumnIndex(DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR);
+            int totalIndex = cursor.getColumnIndex(DownloadManager.COLUMN_TOTAL_SIZE_BYTES);
+            int mimeIndex = cursor.getColumnIndex(DownloadManager.COLUMN_MEDIA_TYPE);
+            int titleIndex = cursor.getColumnIndex(DownloadManager.COLUMN_TITLE);
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(idIndex);
+                seen.add(id);
+                int status = cursor.getInt(statusIndex);
+                if (status == DownloadManager.STATUS_SUCCESSFUL || status == DownloadManager.STATUS_FAILED) {
+                    snapshot.finished.add(new Finished(id, status, cursor.getString(mimeIndex),
+                            cursor.getString(titleIndex)));
+                    continue;
+                }
+                snapshot.active++;
+                snapshot.bytesSoFar += Math.max(0L, cursor.getLong(soFarIndex));
+                long total = cursor.getLong(totalIndex);
+                if (total > 0) {
+                    snapshot.bytesTotal += total;
+                } else {
+                    snapshot.unknownSize = true;
+                }
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        for (long id : tracked) {
+            if (!seen.contains(id)) {
+                untrack(id);
+            }
+        }
+        return snapshot;
+    }
+
+    private void save() {
+        Set<String> values = new HashSet<String>();
+        for (Long id : ids) {
+            values.add(Long.toString(id));
+        }
+        prefs.edit().putStringSet(KEY_IDS, values).apply();
+    }
+
+    static final class Snapshot {
+        final List<Finished> finished = new ArrayList<Finished>();
+        int active;
+        long bytesSoFar;
+        long bytesTotal;
+        boolean unknownSize;
+
+        int getPercent() {
+            return bytesTotal > 0 ? (int) Math.min(100L, bytesSoFar * 100L / bytesTotal) : 0;
+        }
+    }
+
+    static final class Finished {
+        final long id;
+        final int status;
+        final String mimeType;
+        final String title;
+
+        Finished(long id, int status, String mimeType, String title) {
+            this.id = id;
+            this.status = status;
+            this.mimeType = mimeType;
+            this.title = title;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.dbgid.spxid;
+
+import android.os.FileObserver;
+import java.io.File;
+
+/** Feeds ExportDirectoryIndex from inotify events on the export directory. */
+final class ExportDirectoryObserver implements ExportDirectoryIndex.Watcher {
+
+    private static final int OBSERVED_EVENTS = FileObserver.CREATE | FileObserver.CLOSE_WRITE
+            | FileObserver.DELETE | FileObserver.MOVED_FROM | FileObserver.MOVED_TO
+            | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+
+    private FileObserver observer;
+
+    @Override
+    public void start(File dir, final ExportDirectoryIndex index) {
+        stop();
+        observer = new FileObserver(dir.getPath(), OBSERVED_EVENTS) {
+            @Override
+            public void onEvent(int event, String path) {
+                event &= FileObserver.ALL_EVENTS;
+                if ((event & (FileObserver.DELETE_SELF | FileObserver.MOVE_SELF)) != 0) {
+                    index.onDirectoryGone();
+                } else if ((event & (FileObserver.DELETE | FileObserver.MOVED_FROM)) != 0) {
+                    index.onFileRemoved(path);
+                } else {
+                    index.onFileChanged(path);
+                }
+            }
+        };
+        observer.startWatching();
+    }
+
+    @Override
+    public void stop() {
+        if (observer != null) {
+            observer.stopWatching();
+            observer = null;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package com.dbgid.spxid;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.util.Log;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+final class ExportMaintenance {
+
+    interface Listener {
+        void onProgress(int deleted, int total);
+
+        void onFinished(Result result);
+    }
+
+    private static final String TAG = "ExportMaintenance";
+    private static final String PREFS_NAME = "export_maintenance";
+    private static final String KEY_LAST_RUN = "last_run";
+    private static final String KEY_AUTO_CLEANUP = "auto_cleanup";
+    private static final int JOB_ID = 1011;
+    private static final long DAY_MS = 24L * 60L * 60L * 1000L;
+    private static final long AUTO_INTERVAL_MS = DAY_MS;
+    private static final long PART_FILE_GRACE_MS = 60L * 1000L;
+
+    static final int AUTO_KEEP_DAYS = 30;
+    static final long AUTO_MAX_TOTAL_BYTES = 512L * 1024L * 1024L;
+
+    private ExportMaintenance() {
+    }
+
+    static Policy autoPolicy() {
+        return Policy.keepDays(AUTO_KEEP_DAYS).withMaxTotalBytes(AUTO_MAX_TOTAL_BYTES);
+    }
+
+    /**
+     * Automatic clean-up deletes the user's own files, so it only runs once
+     * they have turned it on in the menu. Off by default.
+     */
+    static boolean isAutoCleanupEnabled(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).getBoolean(KEY_AUTO_CLEANUP, false);
+    }
+
+    static void setAutoCleanupEnabled(Context context, boolean enabled) {
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putBoolean(KEY_AUTO_CLEANUP, enabled)
+                .apply();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            scheduleJob(context, enabled);
+        }
+    }
+
+    /**
+     * Keeps the daily JobScheduler run in line with the setting. Called on
+     * every start because the job is not persisted across reboots; an
+     * existing job is left alone so its period is not restarted.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    static void scheduleJob(Context context, boolean enabled) {
+        JobScheduler scheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (scheduler == null) {
+            return;
+        }
+        if (!enabled) {
+            scheduler.cancel(JOB_ID);
+            return;
+        }
+        for (JobInfo job : scheduler.getAllPendingJobs()) {
+            if (job.getId() == JOB_ID) {
+                return;
+            }
+        }
+        scheduler.schedule(new JobInfo.Builder(JOB_ID, new ComponentName(context, ExportMaintenanceJobService.class))
+                .setPeriodic(AUTO_INTERVAL_MS)
+                .setRequiresDeviceIdle(true)
+                .build());
+    }
+
+    static boolean isAutoRunDue(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        return System.currentTimeMillis() - prefs.getLong(KEY_LAST_RUN, 0L) >= AUTO_INTERVAL_MS;
+    }
+
+    static void markAutoRun(Context context) {
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putLong(KEY_LAST_RUN, System.currentTimeMillis())
+                .apply();
+    }
+
+    static Runnable task(final File dir, final Policy policy, final Listener listener) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                Result result = run(dir, policy, listener);
+                Log.i(TAG, "Deleted " + result.deleted + " files (" + result.freedBytes + " bytes)"
+                        + (result.cancelled ? ", cancelled" : ""));
+                if (listener != null) {
+                    listener.onFinished(result);
+                }
+            }
+        };
+    }
+
+    static Result run(File dir, Policy policy, Listener listener) {
+        Result result = new Result();
+        List<File> files = new ArrayList<File>();
+        collectFiles(dir, files);
+        Collections.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long left = a.lastModified();
+                long right = b.lastModified();
+                return left < right ? -1 : (left == right ? 0 : 1);
+            }
+        });
+
+        long now = System.currentTimeMillis();
+        long totalBytes = 0L;
+        for (File file : files) {
+            totalBytes += file.length();
+        }
+        List<File> victims = new ArrayList<File>();
+        long remainingBytes = totalBytes;
+        for (File file : files) {
+            long modified = file.lastModified();
+            if (file.getName().endsWith(".part") && now - modified < PART_FILE_GRACE_MS) {
+                continue;
+            }
+            if (policy.matches(modified, remainingBytes)) {
+                victims.add(file);
+                remainingBytes -= file.length();
+            }
+        }
+
+        for (int i = 0; i < victims.size(); i++) {
+            if (Thread.currentThread().isInterrupted()) {
+                result.cancelled = true;
+                break;
+            }
+            File file = victims.get(i);
+            long length = file.length();
+            if (file.delete()) {
+                result.deleted++;
+                result.freedBytes += length;
+            }
+            if (listener != null) {
+                listener.onProgress(i + 1, victims.size());
+            }
+        }
+        if (policy.deleteAll && !result.cancelled) {
+            deleteEmptyDirectories(dir);
+        }
+        return result;
+    }
+
+    private static void collectFiles(File dir, List<File> out) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (child.isDirectory()) {
+                collectFiles(child, out);
+            } else {
+                out.add(child);
+            }
+        }
+    }
+
+    private static void deleteEmptyDirectories(File dir) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (child.isDirectory()) {
+                deleteEmptyDirectories(child);
+                child.delete();
+            }
+        }
+    }
+
+    static final class Policy {
+        final boolean deleteAll;
+        final long olderThan;
+        final long maxTotalBytes;
+
+        private Policy(boolean deleteAll, long olderThan, long maxTotalBytes) {
+            this.deleteAll = deleteAll;
+            this.olderThan = olderThan;
+            this.maxTotalBytes = maxTotalBytes;
+        }
+
+        static Policy all() {
+            return new Policy(true, 0L, -1L);
+        }
+
+        static Policy olderThan(long cutoffMillis) {
+            return new Policy(false, cutoffMillis, -1L);
+        }
+
+        static Policy keepDays(int days) {
+            return olderThan(System.currentTimeMillis() - days * DAY_MS);
+        }
+
+        Policy withMaxTotalBytes(long bytes) {
+            return new Policy(deleteAll, olderThan, bytes);
+        }
+
+        boolean matches(long lastModified, long remainingBytes) {
+            if (deleteAll) {
+                return true;
+            }
+            if (olderThan > 0 && lastModified < olderThan) {
+                return true;
+            }
+            return maxTotalBytes >= 0 && remainingBytes > maxTotalBytes;
+        }
+    }
+
+    static final class Result {
+        int deleted;
+        long freedBytes;
+        boolean cancelled;
+    }
+}
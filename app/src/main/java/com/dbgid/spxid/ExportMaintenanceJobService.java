@@ -0,0 +1,58 @@
+package com.dbgid.spxid;
+
+import android.Manifest;
+import android.annotation.TargetApi;
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import androidx.core.content.ContextCompat;
+
+/**
+ * The daily automatic export clean-up, run by JobScheduler while the device
+ * is idle. Only scheduled once the user has turned the setting on.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public final class ExportMaintenanceJobService extends JobService {
+
+    private IoScheduler.Job job;
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        if (!ExportMaintenance.isAutoCleanupEnabled(this)
+                || ContextCompat.checkSelfPermission(this, Manifest.permission.WRITE_EXTERNAL_STORAGE)
+                != PackageManager.PERMISSION_GRANTED) {
+            return false;
+        }
+        final Runnable task = ExportMaintenance.task(GlobalApplication.getExportDir(),
+                ExportMaintenance.autoPolicy(), null);
+        try {
+            job = ((GlobalApplication) getApplication()).getIoScheduler().submit(this, "exportMaintenance",
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                task.run();
+                            } finally {
+                                jobFinished(params, false);
+                            }
+                        }
+                    }, 0L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (job == null) {
+            // IO lane full; let JobScheduler back off and try again.
+            jobFinished(params, true);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        if (job != null) {
+            job.cancel();
+        }
+        return true;
+    }
+}
@@ -4,17 +4,26 @@ import android.app.Activity;
 import android.app.Application;
 import android.content.ClipData;
 import android.content.ClipboardManager;
+import android.content.ComponentCallbacks2;
+import android.Manifest;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
 import android.content.res.Resources;
+import android.database.sqlite.SQLiteDatabase;
 import android.graphics.Typeface;
+import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Environment;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.Printer;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.ViewGroup;
@@ -22,53 +31,217 @@ import android.widget.HorizontalScrollView;
 import android.widget.ScrollView;
 import android.widget.TextView;
 import android.widget.Toast;
-import java.io.ByteArrayInputStream;
+import androidx.core.content.ContextCompat;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.Thread.UncaughtExceptionHandler;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 public class GlobalApplication extends Application {
 
     private static Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
 
+    private static final long WEB_ASSET_CACHE_BYTES = 50L * 1024L * 1024L;
+    private static final int IO_THREADS = 2;
+    private static final int IO_MAX_PENDING_JOBS = 2;
+    private static final int SAVE_THREADS = 1;
+    private static final int SAVE_MAX_PENDING_JOBS = 2;
+    private static final long EXPORT_MAINTENANCE_DELAY_MS = 10000L;
+    private static final String PREFS_NETWORK = "network";
+    private static final String KEY_WEBVIEW_USER_AGENT = "webview_user_agent";
+
+    private static long sStartUptime = SystemClock.uptimeMillis();
+
+    private WebAssetCache webAssetCache;
+    private ExportDirectoryIndex exportIndex;
+    private OfflineJobQueue offlineJobQueue;
+    private ConnectivityMonitor connectivityMonitor;
+    private final MemoryCoordinator memoryCoordinator = new MemoryCoordinator();
+    private final Metrics metrics = new Metrics();
+    private final IoScheduler ioScheduler = new IoScheduler(IO_THREADS, IO_MAX_PENDING_JOBS);
+    private final IoScheduler saveScheduler = new IoScheduler(SAVE_THREADS, SAVE_MAX_PENDING_JOBS);
+
     @Override
     public void onCreate() {
         super.onCreate();
         CrashHandler.getInstance().registerGlobal(this);
         CrashHandler.getInstance().registerPart(this);
+        IoScheduler.Listener ioListener = new IoScheduler.Listener() {
+            @Override
+            public void onJobFinished(IoScheduler.Job job) {
+                if (job.getFailure() != null) {
+                    Log.e("IoScheduler", job.getName() + " failed", job.getFailure());
+                }
+                Log.i("IoScheduler", job.getName() + (job.isCancelled() ? " cancelled" : " done")
+                        + ": waited " + job.getQueueMillis() + " ms, ran " + job.getRunMillis() + " ms");
+            }
+        };
+        ioScheduler.setListener(ioListener);
+        saveScheduler.setListener(ioListener);
+        webAssetCache = new WebAssetCache(new File(getCacheDir(), "web-assets"),
+                Uri.parse(getString(R.string.web_url)).getHost(), WEB_ASSET_CACHE_BYTES, memoryCoordinator);
+        connectivityMonitor = new ConnectivityMonitor(this, getString(R.string.web_url));
+        connectivityMonitor.start();
+        warmUpNetwork();
+        scheduleExportMaintenance();
+        memoryCoordinator.register(new MemoryCoordinator.Client() {
+            @Override
+            public long onTrimMemory(int level) {
+                long freed = 0L;
+                if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+                    freed += SQLiteDatabase.releaseMemory();
+                }
+                if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+                    synchronized (GlobalApplication.this) {
+                        if (exportIndex != null) {
+                            freed += exportIndex.releaseMemory();
+                        }
+                    }
+                }
+                return freed;
+            }
+        });
     }
 
-    public static void write(InputStream input, OutputStream output) throws IOException {
-        byte[] buf = new byte[1024 * 8];
-        int len;
-        while ((len = input.read(buf)) != -1) {
-            output.write(buf, 0, len);
-        }
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        memoryCoordinator.trim(level);
     }
 
-    public static void write(File file, byte[] data) throws IOException {
-        File parent = file.getParentFile();
-        if (parent != null && !parent.exists()) parent.mkdirs();
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        memoryCoordinator.trim(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+    }
+
+    public static long getStartUptime() {
+        return sStartUptime;
+    }
+
+    public static File getExportDir() {
+        return new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS), "DBGID-XLXS");
+    }
 
-        ByteArrayInputStream input = new ByteArrayInputStream(data);
-        FileOutputStream output = new FileOutputStream(file);
+    private void warmUpNetwork() {
+        if (!connectivityMonitor.getState().connected) {
+            return;
+        }
         try {
-            write(input, output);
-        } finally {
-            closeIO(input, output);
+            String userAgent = getSharedPreferences(PREFS_NETWORK, MODE_PRIVATE).getString(KEY_WEBVIEW_USER_AGENT, null);
+            ioScheduler.submit(this, "networkWarmup",
+                    NetworkWarmup.task(getString(R.string.web_url), userAgent, webAssetCache), 0L);
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    /**
+     * JobScheduler runs the clean-up where it exists; before Lollipop it
+     * runs at most once a day, shortly after start. Either way only when
+     * the user turned it on.
+     */
+    private void scheduleExportMaintenance() {
+        boolean enabled = ExportMaintenance.isAutoCleanupEnabled(this);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            ExportMaintenance.scheduleJob(this, enabled);
+            return;
+        }
+        if (!enabled || !ExportMaintenance.isAutoRunDue(this)
+                || ContextCompat.checkSelfPermission(this, Manifest.permission.WRITE_EXTERNAL_STORAGE)
+                != PackageManager.PERMISSION_GRANTED) {
+            return;
+        }
+        ExportMaintenance.markAutoRun(this);
+        MAIN_HANDLER.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (memoryCoordinator.isBackgroundWorkPaused()) {
+                    MAIN_HANDLER.postDelayed(this, EXPORT_MAINTENANCE_DELAY_MS);
+                    return;
+                }
+                try {
+                    ioScheduler.submit(GlobalApplication.this, "exportMaintenance",
+                            ExportMaintenance.task(getExportDir(), ExportMaintenance.autoPolicy(), null), 0L);
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }, EXPORT_MAINTENANCE_DELAY_MS);
+    }
+
+    /**
+     * Kept for the next start's network warm-up, which runs before any
+     * WebView exists and must not create one just to ask for this.
+     */
+    public void rememberWebViewUserAgent(String userAgent) {
+        SharedPreferences prefs = getSharedPreferences(PREFS_NETWORK, MODE_PRIVATE);
+        if (userAgent != null && !userAgent.equals(prefs.getString(KEY_WEBVIEW_USER_AGENT, null))) {
+            prefs.edit().putString(KEY_WEBVIEW_USER_AGENT, userAgent).apply();
+        }
+    }
+
+    public WebAssetCache getWebAssetCache() {
+        return webAssetCache;
+    }
+
+    public ConnectivityMonitor getConnectivityMonitor() {
+        return connectivityMonitor;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public MemoryCoordinator getMemoryCoordinator() {
+        return memoryCoordinator;
+    }
+
+    public IoScheduler getIoScheduler() {
+        return ioScheduler;
+    }
+
+    /** Lane for page-initiated saves only, so maintenance or a share never delays them. */
+    public IoScheduler getSaveScheduler() {
+        return saveScheduler;
+    }
+
+    /**
+     * One queue for the process. Its file is written in the background, so a
+     * second instance loading it (after a rotation, say) could read a stale
+     * copy and later overwrite the first instance's jobs.
+     */
+    synchronized OfflineJobQueue getOfflineJobQueue() {
+        if (offlineJobQueue == null) {
+            offlineJobQueue = new OfflineJobQueue(new File(getFilesDir(), "offline_queue.json"), ioScheduler);
         }
+        return offlineJobQueue;
+    }
+
+    public synchronized ExportDirectoryIndex getExportIndex() {
+        if (exportIndex == null) {
+            exportIndex = new ExportDirectoryIndex(getExportDir(), new ExportDirectoryObserver());
+        }
+        return exportIndex;
+    }
+
+    public static void write(InputStream input, OutputStream output) throws IOException {
+        FileIo.copy(input, output);
+    }
+
+    public static void write(File file, byte[] data) throws IOException {
+        FileIo.write(file, data);
     }
 
     public static String toString(InputStream input) throws IOException {
@@ -97,6 +270,8 @@ public class GlobalApplication extends Application {
 
         private PartCrashHandler mPartCrashHandler;
 
+        private StallWatchdog mStallWatchdog;
+
         public static CrashHandler getInstance() {
             if (sInstance == null) {
                 sInstance = new CrashHandler();
@@ -118,7 +293,8 @@ public class GlobalApplication extends Application {
 
         public void registerPart(Context context) {
             unregisterPart(context);
-            mPartCrashHandler = new PartCrashHandler(context.getApplicationContext());
+            mStallWatchdog = new StallWatchdog(StallWatchdog.DEFAULT_THRESHOLD_MS);
+            mPartCrashHandler = new PartCrashHandler(context.getApplicationContext(), mStallWatchdog);
             MAIN_HANDLER.postAtFrontOfQueue(mPartCrashHandler);
         }
 
@@ -127,25 +303,44 @@ public class GlobalApplication extends Application {
                 mPartCrashHandler.isRunning.set(false);
                 mPartCrashHandler = null;
             }
+            if (mStallWatchdog != null) {
+                mStallWatchdog.stop();
+                mStallWatchdog = null;
+            }
+        }
+
+        public List<Stall> getWorstStalls() {
+            StallWatchdog watchdog = mStallWatchdog;
+            return watchdog != null ? watchdog.getWorst() : new ArrayList<Stall>();
         }
 
         private static class PartCrashHandler implements Runnable {
 
             private final Context mContext;
 
+            private final StallWatchdog mStallWatchdog;
+
             public AtomicBoolean isRunning = new AtomicBoolean(true);
 
-            public PartCrashHandler(Context context) {
+            public PartCrashHandler(Context context, StallWatchdog stallWatchdog) {
                 this.mContext = context;
+                this.mStallWatchdog = stallWatchdog;
             }
 
             @Override
             public void run() {
+                if (mStallWatchdog != null) {
+                    Looper.myLooper().setMessageLogging(mStallWatchdog);
+                    mStallWatchdog.start();
+                }
                 while (isRunning.get()) {
                     try {
                         Looper.loop();
                     } catch (final Throwable e) {
                         e.printStackTrace();
+                        if (mStallWatchdog != null) {
+                            mStallWatchdog.abortDispatch();
+                        }
                         if (isRunning.get()) {
                             MAIN_HANDLER.post(new Runnable(){
 
@@ -166,6 +361,188 @@ public class GlobalApplication extends Application {
             }
         }
 
+        public static final class Stall {
+
+            public final String message;
+
+            public final long durationMs;
+
+            public final long uptimeMs;
+
+            public final StackTraceElement[] stackTrace;
+
+            Stall(String message, long durationMs, long uptimeMs, StackTraceElement[] stackTrace) {
+                this.message = message;
+                this.durationMs = durationMs;
+                this.uptimeMs = uptimeMs;
+                this.stackTrace = stackTrace;
+            }
+
+            @Override
+            public String toString() {
+                StringBuilder builder = new StringBuilder();
+                builder.append(durationMs).append(" ms ").append(message);
+                if (stackTrace != null) {
+                    for (StackTraceElement element : stackTrace) {
+                        builder.append("\n    at ").append(element);
+                    }
+                }
+                return builder.toString();
+            }
+        }
+
+        /**
+         * Times every main looper message through the Looper logging hook.
+         * A watcher thread samples the main thread stack while a message is
+         * still running past the threshold, and again at the ANR mark.
+         */
+        private static class StallWatchdog implements Printer, Runnable {
+
+            static final long DEFAULT_THRESHOLD_MS = 100L;
+
+            private static final long ANR_THRESHOLD_MS = 5000L;
+
+            private static final int MAX_STALLS = 20;
+
+            private static final String TAG = "StallWatchdog";
+
+            private final long mThresholdMs;
+
+            private final Thread mMainThread = Looper.getMainLooper().getThread();
+
+            private final List<Stall> mWorst = new ArrayList<Stall>();
+
+            private volatile long mGeneration;
+
+            private volatile long mDispatchStart;
+
+            private volatile String mDispatchMessage;
+
+            private volatile StackTraceElement[] mSampledStack;
+
+            private volatile long mSampledGeneration = -1;
+
+            private volatile boolean mRunning = true;
+
+            private Thread mWatcher;
+
+            StallWatchdog(long thresholdMs) {
+                this.mThresholdMs = thresholdMs;
+            }
+
+            void start() {
+                if (mWatcher != null) {
+                    return;
+                }
+                mWatcher = new Thread(this, "stall-watchdog");
+                mWatcher.setDaemon(true);
+                mWatcher.start();
+            }
+
+            void stop() {
+                mRunning = false;
+                Looper.getMainLooper().setMessageLogging(null);
+                if (mWatcher != null) {
+                    LockSupport.unpark(mWatcher);
+                }
+            }
+
+            @Override
+            public void println(String x) {
+                if (x.startsWith(">")) {
+                    mDispatchMessage = x;
+                    mDispatchStart = SystemClock.uptimeMillis();
+                    mGeneration++;
+                    LockSupport.unpark(mWatcher);
+                } else if (x.startsWith("<")) {
+                    endDispatch(mDispatchMessage);
+                }
+            }
+
+            /**
+             * A message that threw never logs "<<<<< Finished": Looper.loop()
+             * unwinds and PartCrashHandler enters a fresh one. Without this
+             * the watcher would keep timing the dead message and report an
+             * ANR once the queue went idle.
+             */
+            void abortDispatch() {
+                endDispatch(mDispatchMessage + " (threw)");
+            }
+
+            private void endDispatch(String message) {
+                long start = mDispatchStart;
+                if (start == 0) {
+                    return;
+                }
+                long duration = SystemClock.uptimeMillis() - start;
+                long generation = mGeneration;
+                mDispatchStart = 0;
+                if (duration >= mThresholdMs) {
+                    // The watcher may be waiting for the ANR mark on this message.
+                    LockSupport.unpark(mWatcher);
+                    record(new Stall(message, duration, SystemClock.uptimeMillis(),
+                            mSampledGeneration == generation ? mSampledStack : null));
+                }
+            }
+
+            @Override
+            public void run() {
+                while (mRunning) {
+                    long start = mDispatchStart;
+                    long generation = mGeneration;
+                    if (start == 0) {
+                        LockSupport.park(this);
+                        continue;
+                    }
+                    long elapsed = SystemClock.uptimeMillis() - start;
+                    long sampleAt = elapsed < mThresholdMs ? mThresholdMs : ANR_THRESHOLD_MS;
+                    if (elapsed < sampleAt) {
+                        LockSupport.parkNanos(this, (sampleAt - elapsed) * 1000000L);
+                        if (SystemClock.uptimeMillis() - start < sampleAt) {
+                            continue;
+                        }
+                    }
+                    if (mDispatchStart != start || mGeneration != generation) {
+                        continue;
+                    }
+                    mSampledStack = mMainThread.getStackTrace();
+                    mSampledGeneration = generation;
+                    if (sampleAt == ANR_THRESHOLD_MS) {
+                        Log.w(TAG, "Main thread blocked for " + ANR_THRESHOLD_MS + " ms: " + mDispatchMessage);
+                        while (mRunning && mDispatchStart == start && mGeneration == generation) {
+                            LockSupport.park(this);
+                        }
+                    }
+                }
+            }
+
+            private void record(Stall stall) {
+                if (stall.durationMs >= ANR_THRESHOLD_MS) {
+                    Log.e(TAG, stall.toString());
+                } else {
+                    Log.w(TAG, stall.durationMs + " ms " + stall.message);
+                }
+                synchronized (mWorst) {
+                    int index = 0;
+                    while (index < mWorst.size() && mWorst.get(index).durationMs >= stall.durationMs) {
+                        index++;
+                    }
+                    if (index < MAX_STALLS) {
+                        mWorst.add(index, stall);
+                        if (mWorst.size() > MAX_STALLS) {
+                            mWorst.remove(mWorst.size() - 1);
+                        }
+                    }
+                }
+            }
+
+            List<Stall> getWorst() {
+                synchronized (mWorst) {
+                    return new ArrayList<Stall>(mWorst);
+                }
+            }
+        }
+
         private static class UncaughtExceptionHandlerImpl implements UncaughtExceptionHandler {
 
             private static DateFormat DATE_FORMAT = new SimpleDateFormat("yyyy_MM_dd-HH_mm_ss");
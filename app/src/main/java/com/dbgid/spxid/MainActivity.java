@@ -9,57 +9,108 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.ActivityNotFoundException;
 import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
-import android.database.Cursor;
-import android.net.ConnectivityManager;
-import android.net.Network;
-import android.net.NetworkCapabilities;
-import android.net.NetworkInfo;
+import android.content.res.AssetFileDescriptor;
+import android.graphics.Bitmap;
+import android.graphics.Typeface;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Debug;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.SystemClock;
 import android.media.MediaPlayer;
-import android.util.Base64;
+import android.text.format.Formatter;
+import android.util.Log;
 import android.view.View;
+import android.view.ViewGroup;
+import android.view.ViewStub;
+import android.view.ViewTreeObserver;
 import android.webkit.DownloadListener;
 import android.webkit.JavascriptInterface;
 import android.webkit.MimeTypeMap;
+import android.webkit.RenderProcessGoneDetail;
 import android.webkit.URLUtil;
 import android.webkit.ValueCallback;
 import android.webkit.WebChromeClient;
 import android.webkit.WebResourceError;
 import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
 import android.webkit.WebSettings;
 import android.webkit.WebView;
 import android.webkit.WebViewClient;
 import android.widget.Button;
+import android.widget.CheckBox;
+import android.widget.CompoundButton;
 import android.widget.ProgressBar;
+import android.widget.ScrollView;
 import android.widget.TextView;
 import android.widget.Toast;
 import androidx.core.app.NotificationCompat;
 import androidx.core.content.FileProvider;
 import androidx.swiperefreshlayout.widget.SwipeRefreshLayout;
+import androidx.webkit.WebMessageCompat;
+import androidx.webkit.WebMessagePortCompat;
+import androidx.webkit.WebViewCompat;
+import androidx.webkit.WebViewFeature;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
 
 public class MainActivity extends Activity {
 
+    private static final String TAG = "MainActivity";
+    private static final boolean LAZY_WEBVIEW = true;
+    private static final String PREFS_SETTINGS = "settings";
+    private static final String KEY_SPLASH_SOUND = "splash_sound";
     private static final int FILE_CHOOSER_REQUEST_CODE = 1001;
     private static final int STORAGE_PERMISSION_REQUEST_CODE = 1002;
     private static final String DOWNLOAD_CHANNEL_ID = "download_channel";
+    private static final int BLOB_CHUNK_SIZE = 384 * 1024;
+    private static final int UPLOAD_MAX_EDGE = 1600;
+    private static final int UPLOAD_QUALITY = 85;
+    private static final long RECOGNITION_CACHE_BYTES = 8L * 1024L * 1024L;
+    private static final int DUPLICATE_FLAG_DISTANCE = 6;
+    private static final int DUPLICATE_DROP_DISTANCE = 2;
+    private static final int QUEUE_DRAIN_BATCH = 10;
+    private static final long ORPHAN_TRANSFER_IDLE_MS = 60000L;
+    private static final String SAVE_QUEUED = "queued";
+    private static final String SAVE_BUSY = "busy";
+    private static final String SAVE_FAILED = "failed";
+    private static final long DOWNLOAD_POLL_INTERVAL_MS = 1000L;
+    private static final String KEY_WEB_VIEW_STATE = "web_view_state";
+    private static final long RENDERER_CRASH_LOOP_MS = 10000L;
+    private static final String XLSX_MIME_TYPE = "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet";
 
     private SwipeRefreshLayout swipeRefreshLayout;
     private WebView webView;
     private ProgressBar progressBar;
     private View offlineView;
     private Button offlineRetry;
+    private TextView offlineQueue;
+    private TextView queueProgress;
     private View splashContainer;
     private TextView splashText;
     private MediaPlayer splashPlayer;
@@ -68,15 +119,32 @@ public class MainActivity extends Activity {
     private View menuOpen;
     private View menuClear;
     private View menuShare;
+    private View menuDiagnostics;
+    private View menuHistory;
+    private CheckBox menuSplashSound;
+    private CheckBox menuAutoCleanup;
+    private TextView downloadStatus;
     private boolean hasLoadedHome;
+    private Bundle webViewState;
+    private long rendererGoneAt;
+    private long rendererRecoveryStartedAt;
     private boolean pendingClearRequest;
 
     private ValueCallback<Uri[]> filePathCallback;
     private ValueCallback<Uri> filePathCallbackLegacy;
+    /** Chooser results still being hashed/resized, with the Uris the user picked. */
+    private final Map<ValueCallback<Uri[]>, Uri[]> pendingUploads = new HashMap<ValueCallback<Uri[]>, Uri[]>();
 
     private DownloadManager downloadManager;
     private BroadcastReceiver downloadReceiver;
-    private long lastDownloadId = -1L;
+    private DownloadTracker downloadTracker;
+    private boolean resumed;
+    private final Runnable pollDownloadsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            refreshDownloads();
+        }
+    };
     private String pendingDownloadUrl;
     private String pendingDownloadUserAgent;
     private String pendingDownloadContentDisposition;
@@ -86,16 +154,109 @@ public class MainActivity extends Activity {
     private String pendingBlobFileName;
     private String pendingBlobMimeType;
 
+    private ChunkedBlobWriter chunkedBlobWriter;
+    private FileAllocator exportAllocator;
+    private ResiBarcodeDecoder resiBarcodeDecoder;
+    private UploadImagePreprocessor uploadImagePreprocessor;
+    private RecognitionCache recognitionCache;
+    private NearDuplicateDetector nearDuplicateDetector;
+    private volatile boolean recognitionCacheAttached;
+    private ResiDatabase resiDatabase;
+    private OfflineJobQueue offlineJobQueue;
+    private ConnectivityMonitor connectivityMonitor;
+    private MemoryCoordinator memoryCoordinator;
+    private Metrics.Histogram pageLoadMetric;
+    private Metrics.Histogram blobRoundTripMetric;
+    private Metrics.Histogram base64DecodeMetric;
+    private Metrics.Histogram base64WriteMetric;
+    private Metrics.Histogram downloadRoundTripMetric;
+    private Metrics.Counter pageErrorCounter;
+    private Metrics.Counter blobErrorCounter;
+    private Metrics.Counter base64BytesCounter;
+    private Metrics.Counter downloadFailedCounter;
+    private long pageStartedAt;
+    private volatile long blobStartedAt;
+    private final MemoryCoordinator.Client memoryClient = new MemoryCoordinator.Client() {
+        @Override
+        public long onTrimMemory(int level) {
+            // The player and WebView report no sizes; measure the native
+            // heap around them instead.
+            long nativeBefore = Debug.getNativeHeapAllocatedSize();
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+                releaseSplashPlayer();
+            }
+            if (webView != null && MemoryCoordinator.isCritical(level)) {
+                webView.clearCache(false);
+            }
+            long freed = Math.max(0L, nativeBefore - Debug.getNativeHeapAllocatedSize());
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+                freed += recognitionCache.releaseMemory();
+            }
+            if (MemoryCoordinator.isCritical(level)) {
+                freed += nearDuplicateDetector.releaseMemory();
+            }
+            return freed;
+        }
+    };
+    private final ConnectivityMonitor.Listener connectivityListener = new ConnectivityMonitor.Listener() {
+        @Override
+        public void onConnectivityChanged(ConnectivityMonitor.State previous, ConnectivityMonitor.State current) {
+            if (!previous.isOnline() && current.isOnline()) {
+                onNetworkRestored();
+            } else if (previous.isOnline() && !current.isOnline()) {
+                onNetworkLost();
+            }
+        }
+    };
+    private final Base64SaveTask.Callback base64SaveCallback = new Base64SaveTask.Callback() {
+        @Override
+        public void onSaved(File file, String mimeType, long bytes, long decodeMillis, long writeMillis) {
+            base64DecodeMetric.record(decodeMillis);
+            base64WriteMetric.record(writeMillis);
+            base64BytesCounter.add(bytes);
+            onBlobSaved(file, mimeType);
+        }
+
+        @Override
+        public void onFailed(String fileName) {
+            showToast(R.string.download_failed);
+        }
+    };
+    private final Handler queueHandler = new Handler(Looper.getMainLooper());
+    private final OfflineJobQueue.Listener queueListener = new OfflineJobQueue.Listener() {
+        @Override
+        public void onQueueChanged(int size) {
+            updateQueueStatus(size);
+        }
+    };
+    private final Runnable drainQueueRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drainQueue();
+        }
+    };
+    // Start of the current drain, 0 when none; drainBaseCompleted is the
+    // queue's completed count at that moment.
+    private long drainStartedAt;
+    private long drainBaseCompleted;
+    private final Map<String, XlsxExport> xlsxExports = new HashMap<String, XlsxExport>();
+    private final AtomicLong nextXlsxExportId = new AtomicLong(1);
+    private HandlerThread blobPortThread;
+    private Handler blobPortHandler;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
+        if (savedInstanceState != null) {
+            webViewState = savedInstanceState.getBundle(KEY_WEB_VIEW_STATE);
+        }
 
-        swipeRefreshLayout = findViewById(R.id.swipe_refresh);
-        webView = findViewById(R.id.web_view);
         progressBar = findViewById(R.id.progress_bar);
         offlineView = findViewById(R.id.offline_view);
         offlineRetry = findViewById(R.id.offline_retry);
+        offlineQueue = findViewById(R.id.offline_queue);
+        queueProgress = findViewById(R.id.queue_progress);
         splashContainer = findViewById(R.id.splash_container);
         splashText = findViewById(R.id.splash_text);
         menuContainer = findViewById(R.id.menu_container);
@@ -103,24 +264,11 @@ public class MainActivity extends Activity {
         menuOpen = findViewById(R.id.menu_open);
         menuClear = findViewById(R.id.menu_clear);
         menuShare = findViewById(R.id.menu_share);
-
-        swipeRefreshLayout.setColorSchemeResources(
-                android.R.color.holo_blue_bright,
-                android.R.color.holo_green_light,
-                android.R.color.holo_orange_light,
-                android.R.color.holo_red_light
-        );
-        swipeRefreshLayout.setOnRefreshListener(new SwipeRefreshLayout.OnRefreshListener() {
-            @Override
-            public void onRefresh() {
-                if (isOnline()) {
-                    webView.reload();
-                } else {
-                    swipeRefreshLayout.setRefreshing(false);
-                    showOffline();
-                }
-            }
-        });
+        menuDiagnostics = findViewById(R.id.menu_diagnostics);
+        menuHistory = findViewById(R.id.menu_history);
+        menuSplashSound = findViewById(R.id.menu_splash_sound);
+        menuAutoCleanup = findViewById(R.id.menu_auto_cleanup);
+        downloadStatus = findViewById(R.id.download_status);
 
         offlineRetry.setOnClickListener(new View.OnClickListener() {
             @Override
@@ -133,6 +281,7 @@ public class MainActivity extends Activity {
                         webView.reload();
                     }
                 } else {
+                    connectivityMonitor.probe();
                     Toast.makeText(MainActivity.this, R.string.offline_message, Toast.LENGTH_SHORT).show();
                 }
             }
@@ -155,19 +304,218 @@ public class MainActivity extends Activity {
                 shareApp();
             }
         });
+        menuDiagnostics.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                showDiagnostics();
+            }
+        });
+        menuHistory.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                showExportHistory(ExportDirectoryIndex.SORT_NEWEST);
+            }
+        });
+        menuSplashSound.setChecked(getSharedPreferences(PREFS_SETTINGS, MODE_PRIVATE).getBoolean(KEY_SPLASH_SOUND, true));
+        menuSplashSound.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                getSharedPreferences(PREFS_SETTINGS, MODE_PRIVATE).edit()
+                        .putBoolean(KEY_SPLASH_SOUND, isChecked)
+                        .apply();
+            }
+        });
+        menuAutoCleanup.setChecked(ExportMaintenance.isAutoCleanupEnabled(this));
+        menuAutoCleanup.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                if (isChecked == ExportMaintenance.isAutoCleanupEnabled(MainActivity.this)) {
+                    return;
+                }
+                if (isChecked) {
+                    confirmAutoCleanup();
+                } else {
+                    ExportMaintenance.setAutoCleanupEnabled(MainActivity.this, false);
+                }
+            }
+        });
+
+        exportAllocator = ((GlobalApplication) getApplication()).getExportIndex();
+        chunkedBlobWriter = new ChunkedBlobWriter(new ChunkedBlobWriter.ProgressListener() {
+            @Override
+            public void onProgress(String handle, long written, long total) {
+                showBlobProgress(written, total);
+            }
+        }, exportAllocator);
+
+        resiDatabase = ResiDatabase.getInstance(this);
+        offlineJobQueue = ((GlobalApplication) getApplication()).getOfflineJobQueue();
+        offlineJobQueue.setListener(queueListener);
+        resiBarcodeDecoder = new ResiBarcodeDecoder(getContentResolver());
+        uploadImagePreprocessor = new UploadImagePreprocessor(this, UPLOAD_MAX_EDGE, UPLOAD_QUALITY,
+                Bitmap.CompressFormat.JPEG);
+        recognitionCache = new RecognitionCache(getContentResolver(), new File(getCacheDir(), "recognition"),
+                RECOGNITION_CACHE_BYTES);
+        nearDuplicateDetector = new NearDuplicateDetector(getContentResolver(), DUPLICATE_FLAG_DISTANCE);
 
-        setupWebView();
         setupDownloadReceiver();
+        connectivityMonitor = ((GlobalApplication) getApplication()).getConnectivityMonitor();
+        connectivityMonitor.addListener(connectivityListener);
+        memoryCoordinator = ((GlobalApplication) getApplication()).getMemoryCoordinator();
+        memoryCoordinator.register(memoryClient);
+        Metrics metrics = ((GlobalApplication) getApplication()).getMetrics();
+        pageLoadMetric = metrics.histogram("page.load");
+        blobRoundTripMetric = metrics.histogram("blob.roundtrip");
+        base64DecodeMetric = metrics.histogram("base64.decode");
+        base64WriteMetric = metrics.histogram("base64.write");
+        downloadRoundTripMetric = metrics.histogram("download.roundtrip");
+        pageErrorCounter = metrics.counter("page.error");
+        blobErrorCounter = metrics.counter("blob.error");
+        base64BytesCounter = metrics.counter("base64.bytes");
+        downloadFailedCounter = metrics.counter("download.failed");
+        updateQueueStatus(offlineJobQueue.size());
         startSplashAnimation();
         playSplashSound();
         showMenu();
+        reportFirstFrame();
+    }
+
+    private void reportFirstFrame() {
+        final View decorView = getWindow().getDecorView();
+        decorView.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                decorView.getViewTreeObserver().removeOnPreDrawListener(this);
+                decorView.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        Log.i(TAG, "First frame " + (SystemClock.uptimeMillis() - GlobalApplication.getStartUptime())
+                                + " ms after process start (lazy WebView: " + LAZY_WEBVIEW + ")");
+                        scheduleWebViewPrewarm();
+                    }
+                });
+                return true;
+            }
+        });
+        if (!LAZY_WEBVIEW) {
+            ensureWebView();
+        }
+    }
+
+    private void scheduleWebViewPrewarm() {
+        if (webView != null) {
+            return;
+        }
+        Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+            @Override
+            public boolean queueIdle() {
+                if (!isFinishing()) {
+                    long startedAt = SystemClock.uptimeMillis();
+                    if (ensureWebView()) {
+                        Log.i(TAG, "WebView prewarmed in " + (SystemClock.uptimeMillis() - startedAt) + " ms");
+                    }
+                }
+                return false;
+            }
+        });
+    }
+
+    private boolean ensureWebView() {
+        if (webView != null) {
+            return false;
+        }
+        ViewStub stub = findViewById(R.id.web_stub);
+        swipeRefreshLayout = (SwipeRefreshLayout) stub.inflate();
+        webView = swipeRefreshLayout.findViewById(R.id.web_view);
+        setupWebView();
+        return true;
     }
 
     @Override
     protected void onResume() {
         super.onResume();
+        resumed = true;
+        refreshDownloads();
         if (webContainer.getVisibility() == View.VISIBLE && !isOnline()) {
             showOffline();
+        } else if (isOnline()) {
+            drainQueue();
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        resumed = false;
+        queueHandler.removeCallbacks(pollDownloadsRunnable);
+        saveWebViewState();
+        super.onPause();
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        if (webViewState != null) {
+            outState.putBundle(KEY_WEB_VIEW_STATE, webViewState);
+        }
+    }
+
+    private void saveWebViewState() {
+        if (webView == null || webView.getUrl() == null) {
+            return;
+        }
+        Bundle state = new Bundle();
+        if (webView.saveState(state) != null) {
+            webViewState = state;
+        }
+    }
+
+    /**
+     * Returns false when there is no saved state to restore. While offline
+     * the state is kept and the offline view shown, as loadHome() would;
+     * onNetworkRestored restores it once the site can be reached.
+     */
+    private boolean restoreWebViewState() {
+        if (webViewState == null) {
+            return false;
+        }
+        if (!isOnline()) {
+            showOffline();
+            return true;
+        }
+        if (webView.restoreState(webViewState) == null) {
+            return false;
+        }
+        offlineView.setVisibility(View.GONE);
+        return true;
+    }
+
+    /**
+     * Replaces a WebView whose renderer died with a fresh one in the same
+     * place and restores the back/forward state saved in onPause. Scanned
+     * resi stay in ResiDatabase, so the page can rehydrate from AndroidResiStore.
+     */
+    private void recreateWebView(WebView deadView) {
+        long now = SystemClock.elapsedRealtime();
+        boolean crashLoop = rendererGoneAt > 0 && now - rendererGoneAt < RENDERER_CRASH_LOOP_MS;
+        rendererGoneAt = now;
+        rendererRecoveryStartedAt = now;
+
+        ViewGroup parent = (ViewGroup) swipeRefreshLayout.getParent();
+        int index = parent.indexOfChild(swipeRefreshLayout);
+        ViewGroup.LayoutParams params = swipeRefreshLayout.getLayoutParams();
+        parent.removeView(swipeRefreshLayout);
+        deadView.destroy();
+
+        swipeRefreshLayout = (SwipeRefreshLayout) getLayoutInflater().inflate(R.layout.web_content, parent, false);
+        parent.addView(swipeRefreshLayout, index, params);
+        webView = swipeRefreshLayout.findViewById(R.id.web_view);
+        setupWebView();
+        if (crashLoop) {
+            // Don't bring the page that keeps killing the renderer back later either.
+            webViewState = null;
+        }
+        if (!restoreWebViewState()) {
+            loadHome();
         }
     }
 
@@ -177,6 +525,35 @@ public class MainActivity extends Activity {
             unregisterReceiver(downloadReceiver);
             downloadReceiver = null;
         }
+        connectivityMonitor.removeListener(connectivityListener);
+        memoryCoordinator.unregister(memoryClient);
+        offlineJobQueue.removeListener(queueListener);
+        queueHandler.removeCallbacks(drainQueueRunnable);
+        queueHandler.removeCallbacks(pollDownloadsRunnable);
+        if (isChangingConfigurations()) {
+            // The old page may still finish its transfers; only drop what it abandons.
+            abortOrphanedTransfers();
+        } else {
+            GlobalApplication app = (GlobalApplication) getApplication();
+            app.getIoScheduler().cancelAll(this);
+            app.getSaveScheduler().cancelAll(this);
+            chunkedBlobWriter.abortAll();
+            cancelAllXlsxExports();
+        }
+        resiBarcodeDecoder.shutdown();
+        uploadImagePreprocessor.shutdown();
+        recognitionCache.shutdown();
+        nearDuplicateDetector.shutdown();
+        // shutdownNow drops queued work, so answer the page with what was picked.
+        for (Map.Entry<ValueCallback<Uri[]>, Uri[]> pending : pendingUploads.entrySet()) {
+            pending.getKey().onReceiveValue(pending.getValue());
+        }
+        pendingUploads.clear();
+        if (blobPortThread != null) {
+            blobPortThread.quit();
+            blobPortThread = null;
+            blobPortHandler = null;
+        }
         releaseSplashPlayer();
         super.onDestroy();
     }
@@ -197,8 +574,14 @@ public class MainActivity extends Activity {
         if (requestCode == FILE_CHOOSER_REQUEST_CODE) {
             if (filePathCallback != null) {
                 Uri[] result = WebChromeClient.FileChooserParams.parseResult(resultCode, data);
-                filePathCallback.onReceiveValue(result);
+                final ValueCallback<Uri[]> callback = filePathCallback;
                 filePathCallback = null;
+                if (result == null) {
+                    callback.onReceiveValue(null);
+                } else {
+                    pendingUploads.put(callback, result);
+                    prepareChosenImages(result, callback);
+                }
             }
             if (filePathCallbackLegacy != null) {
                 Uri result = (resultCode == RESULT_OK && data != null) ? data.getData() : null;
@@ -210,7 +593,145 @@ public class MainActivity extends Activity {
         super.onActivityResult(requestCode, resultCode, data);
     }
 
+    /**
+     * Hashes the chosen images and looks them up in the recognition cache.
+     * Once the page has attached to AndroidRecognitionCache, hits are handed
+     * to it directly and only the misses are resized and uploaded.
+     */
+    private void prepareChosenImages(final Uri[] chosen, final ValueCallback<Uri[]> callback) {
+        final long startedAt = SystemClock.elapsedRealtime();
+        recognitionCache.hashAll(chosen, new RecognitionCache.HashCallback() {
+            @Override
+            public void onHashed(String[] hashes) {
+                decodeResiLabels(chosen, hashes);
+                JSONArray hits = new JSONArray();
+                List<Uri> pending = new ArrayList<Uri>(chosen.length);
+                List<String> pendingHashes = new ArrayList<String>(chosen.length);
+                boolean skipHits = recognitionCacheAttached;
+                for (int i = 0; i < chosen.length; i++) {
+                    String cached = hashes[i] != null ? recognitionCache.get(hashes[i]) : null;
+                    if (cached != null && skipHits) {
+                        JSONObject hit = new JSONObject();
+                        try {
+                            hit.put("hash", hashes[i]);
+                            hit.put("result", cached);
+                            hits.put(hit);
+                            continue;
+                        } catch (JSONException ignored) {
+                        }
+                    }
+                    pending.add(chosen[i]);
+                    pendingHashes.add(hashes[i]);
+                }
+                Log.i(TAG, "Hashed " + chosen.length + " images, " + hits.length() + " cached, in "
+                        + (SystemClock.elapsedRealtime() - startedAt) + " ms");
+                recognitionCache.logStats();
+                filterNearDuplicates(pending, pendingHashes, hits, callback);
+            }
+        });
+    }
+
+    /**
+     * Flags photos that look like one uploaded earlier or one earlier in the
+     * same pick. Close matches are dropped before upload, but only for a
+     * page that has attached, since it is told which earlier image each
+     * dropped photo duplicates. A photo counts as uploaded once the page
+     * stores its result through AndroidRecognitionCache.put.
+     */
+    private void filterNearDuplicates(final List<Uri> pending, final List<String> pendingHashes,
+                                      final JSONArray hits, final ValueCallback<Uri[]> callback) {
+        final String[] labels = new String[pending.size()];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = pendingHashes.get(i) != null ? pendingHashes.get(i) : pending.get(i).toString();
+        }
+        final boolean dropDuplicates = recognitionCacheAttached;
+        nearDuplicateDetector.check(pending.toArray(new Uri[pending.size()]), labels,
+                new NearDuplicateDetector.Callback() {
+            @Override
+            public void onChecked(NearDuplicateDetector.Result[] results) {
+                final JSONArray dropped = new JSONArray();
+                List<Uri> upload = new ArrayList<Uri>(results.length);
+                final List<String> uploadHashes = new ArrayList<String>(results.length);
+                final List<NearDuplicateDetector.Result> uploadResults = new ArrayList<NearDuplicateDetector.Result>(results.length);
+                for (int i = 0; i < results.length; i++) {
+                    NearDuplicateDetector.Result result = results[i];
+                    if (dropDuplicates && result.isDuplicate() && result.distance <= DUPLICATE_DROP_DISTANCE) {
+                        JSONObject duplicate = new JSONObject();
+                        try {
+                            duplicate.put("hash", labels[i]);
+                            duplicate.put("duplicateOf", result.duplicateOf);
+                            duplicate.put("distance", result.distance);
+                            dropped.put(duplicate);
+                            continue;
+                        } catch (JSONException ignored) {
+                        }
+                    }
+                    upload.add(pending.get(i));
+                    uploadHashes.add(pendingHashes.get(i));
+                    uploadResults.add(result);
+                }
+                uploadImagePreprocessor.process(upload.toArray(new Uri[upload.size()]),
+                        new UploadImagePreprocessor.Callback() {
+                    @Override
+                    public void onProcessed(final Uri[] uris) {
+                        runOnUiThread(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (pendingUploads.remove(callback) == null) {
+                                    return;
+                                }
+                                publishImageHashes(uris, uploadHashes, uploadResults, hits, dropped);
+                                callback.onReceiveValue(uris);
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    private void publishImageHashes(Uri[] uris, List<String> hashes, List<NearDuplicateDetector.Result> checks,
+                                    JSONArray hits, JSONArray dropped) {
+        JSONArray files = new JSONArray();
+        for (int i = 0; i < uris.length; i++) {
+            JSONObject file = new JSONObject();
+            try {
+                file.put("name", uris[i].getLastPathSegment());
+                file.put("hash", hashes.get(i) != null ? hashes.get(i) : JSONObject.NULL);
+                NearDuplicateDetector.Result check = checks.get(i);
+                if (check.isDuplicate()) {
+                    file.put("duplicateOf", check.duplicateOf);
+                    file.put("distance", check.distance);
+                }
+                files.put(file);
+            } catch (JSONException ignored) {
+            }
+        }
+        runJavascript("(function(f,h,d){"
+                + "if(window.onAndroidImagesHashed){window.onAndroidImagesHashed(f,h,d);}"
+                + "try{window.dispatchEvent(new CustomEvent('dbg-images-hashed',{detail:{files:f,hits:h,dropped:d}}));}catch(e){}"
+                + "})(" + files.toString() + "," + hits.toString() + "," + dropped.toString() + ");");
+    }
+
     private void setupWebView() {
+        swipeRefreshLayout.setColorSchemeResources(
+                android.R.color.holo_blue_bright,
+                android.R.color.holo_green_light,
+                android.R.color.holo_orange_light,
+                android.R.color.holo_red_light
+        );
+        swipeRefreshLayout.setOnRefreshListener(new SwipeRefreshLayout.OnRefreshListener() {
+            @Override
+            public void onRefresh() {
+                if (isOnline()) {
+                    webView.reload();
+                } else {
+                    swipeRefreshLayout.setRefreshing(false);
+                    showOffline();
+                }
+            }
+        });
+
         WebSettings settings = webView.getSettings();
         settings.setJavaScriptEnabled(true);
         settings.setDomStorageEnabled(true);
@@ -224,7 +745,16 @@ public class MainActivity extends Activity {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
             settings.setMixedContentMode(WebSettings.MIXED_CONTENT_ALWAYS_ALLOW);
         }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            webView.setRendererPriorityPolicy(WebView.RENDERER_PRIORITY_IMPORTANT, false);
+        }
+        ((GlobalApplication) getApplication()).rememberWebViewUserAgent(settings.getUserAgentString());
         webView.addJavascriptInterface(new BlobDownloadInterface(), "AndroidBlobDownloader");
+        webView.addJavascriptInterface(new XlsxExportInterface(), "AndroidXlsxExporter");
+        webView.addJavascriptInterface(new ResiStoreInterface(), "AndroidResiStore");
+        webView.addJavascriptInterface(new WorkQueueInterface(), "AndroidWorkQueue");
+        webView.addJavascriptInterface(new RecognitionCacheInterface(), "AndroidRecognitionCache");
+        final WebAssetCache webAssetCache = ((GlobalApplication) getApplication()).getWebAssetCache();
 
         webView.setWebViewClient(new WebViewClient() {
             @Override
@@ -247,23 +777,60 @@ public class MainActivity extends Activity {
                 return false;
             }
 
+            @Override
+            public WebResourceResponse shouldInterceptRequest(WebView view, String url) {
+                return webAssetCache.intercept("GET", Uri.parse(url), null);
+            }
+
+            @Override
+            public WebResourceResponse shouldInterceptRequest(WebView view, WebResourceRequest request) {
+                return webAssetCache.intercept(request.getMethod(), request.getUrl(), request.getRequestHeaders());
+            }
+
             @Override
             public void onPageFinished(WebView view, String url) {
+                if (pageStartedAt > 0) {
+                    pageLoadMetric.record(SystemClock.elapsedRealtime() - pageStartedAt);
+                    pageStartedAt = 0;
+                }
+                webAssetCache.logStats();
                 swipeRefreshLayout.setRefreshing(false);
                 progressBar.setVisibility(View.GONE);
                 if (isOnline()) {
                     offlineView.setVisibility(View.GONE);
                 }
                 injectBlobDownloadSupport();
+                saveWebViewState();
+                drainQueue();
+                if (rendererRecoveryStartedAt > 0) {
+                    Log.i(TAG, "WebView recovered in " + (SystemClock.elapsedRealtime() - rendererRecoveryStartedAt) + "ms");
+                    rendererRecoveryStartedAt = 0;
+                    runJavascript("window.dispatchEvent(new Event('dbg-renderer-recovered'));");
+                }
+            }
+
+            @Override
+            public boolean onRenderProcessGone(WebView view, RenderProcessGoneDetail detail) {
+                Log.w(TAG, "WebView renderer gone, crashed=" + detail.didCrash());
+                if (view != webView) {
+                    view.destroy();
+                    return true;
+                }
+                recreateWebView(view);
+                return true;
             }
 
             @Override
             public void onPageStarted(WebView view, String url, android.graphics.Bitmap favicon) {
+                pageStartedAt = SystemClock.elapsedRealtime();
                 progressBar.setVisibility(View.VISIBLE);
             }
 
             @Override
             public void onReceivedError(WebView view, WebResourceRequest request, WebResourceError error) {
+                if (request.isForMainFrame()) {
+                    pageErrorCounter.increment();
+                }
                 swipeRefreshLayout.setRefreshing(false);
                 if (!isOnline()) {
                     showOffline();
@@ -272,6 +839,7 @@ public class MainActivity extends Activity {
 
             @Override
             public void onReceivedError(WebView view, int errorCode, String description, String failingUrl) {
+                pageErrorCounter.increment();
                 swipeRefreshLayout.setRefreshing(false);
                 if (!isOnline()) {
                     showOffline();
@@ -337,11 +905,14 @@ public class MainActivity extends Activity {
     }
 
     private void openWebView() {
+        ensureWebView();
         menuContainer.setVisibility(View.GONE);
         webContainer.setVisibility(View.VISIBLE);
         if (!hasLoadedHome) {
             hasLoadedHome = true;
-            loadHome();
+            if (!restoreWebViewState()) {
+                loadHome();
+            }
         } else if (!isOnline()) {
             showOffline();
         }
@@ -380,11 +951,27 @@ public class MainActivity extends Activity {
 
     private void playSplashSound() {
         releaseSplashPlayer();
+        if (!getSharedPreferences(PREFS_SETTINGS, MODE_PRIVATE).getBoolean(KEY_SPLASH_SOUND, true)) {
+            return;
+        }
+        final long startedAt = SystemClock.uptimeMillis();
+        AssetFileDescriptor afd = null;
         try {
-            splashPlayer = MediaPlayer.create(this, R.raw.splash_cinematic);
-            if (splashPlayer == null) {
+            afd = getResources().openRawResourceFd(R.raw.splash_cinematic);
+            if (afd == null) {
                 return;
             }
+            splashPlayer = new MediaPlayer();
+            splashPlayer.setDataSource(afd.getFileDescriptor(), afd.getStartOffset(), afd.getLength());
+            splashPlayer.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
+                @Override
+                public void onPrepared(MediaPlayer mp) {
+                    Log.i(TAG, "Splash sound prepared " + (SystemClock.uptimeMillis() - startedAt) + " ms after request");
+                    if (mp == splashPlayer) {
+                        mp.start();
+                    }
+                }
+            });
             splashPlayer.setOnCompletionListener(new MediaPlayer.OnCompletionListener() {
                 @Override
                 public void onCompletion(MediaPlayer mp) {
@@ -398,9 +985,12 @@ public class MainActivity extends Activity {
                     return true;
                 }
             });
-            splashPlayer.start();
+            splashPlayer.prepareAsync();
         } catch (Exception ignored) {
             releaseSplashPlayer();
+        } finally {
+            GlobalApplication.closeIO(afd);
+            Log.i(TAG, "Splash sound setup took " + (SystemClock.uptimeMillis() - startedAt) + " ms on main thread");
         }
     }
 
@@ -416,42 +1006,68 @@ public class MainActivity extends Activity {
 
     private void setupDownloadReceiver() {
         downloadManager = (DownloadManager) getSystemService(DOWNLOAD_SERVICE);
+        downloadTracker = new DownloadTracker(this, downloadManager);
         createDownloadChannel();
         downloadReceiver = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
                 long id = intent.getLongExtra(DownloadManager.EXTRA_DOWNLOAD_ID, -1);
-                if (id != lastDownloadId || downloadManager == null) {
-                    return;
-                }
-                DownloadManager.Query query = new DownloadManager.Query();
-                query.setFilterById(id);
-                Cursor cursor = null;
-                try {
-                    cursor = downloadManager.query(query);
-                    if (cursor != null && cursor.moveToFirst()) {
-                        int status = cursor.getInt(cursor.getColumnIndex(DownloadManager.COLUMN_STATUS));
-                        String mimeType = cursor.getString(cursor.getColumnIndex(DownloadManager.COLUMN_MEDIA_TYPE));
-                        String title = cursor.getString(cursor.getColumnIndex(DownloadManager.COLUMN_TITLE));
-                        if (status == DownloadManager.STATUS_SUCCESSFUL) {
-                            Uri fileUri = downloadManager.getUriForDownloadedFile(id);
-                            Toast.makeText(MainActivity.this, R.string.download_complete_title, Toast.LENGTH_SHORT).show();
-                            showDownloadCompleteDialog(fileUri, mimeType);
-                            showDownloadNotification(fileUri, mimeType, title);
-                        } else if (status == DownloadManager.STATUS_FAILED) {
-                            Toast.makeText(MainActivity.this, R.string.download_failed, Toast.LENGTH_SHORT).show();
-                        }
-                    }
-                } finally {
-                    if (cursor != null) {
-                        cursor.close();
-                    }
+                if (downloadTracker.isTracked(id)) {
+                    refreshDownloads();
                 }
             }
         };
         registerReceiver(downloadReceiver, new IntentFilter(DownloadManager.ACTION_DOWNLOAD_COMPLETE));
     }
 
+    private void refreshDownloads() {
+        queueHandler.removeCallbacks(pollDownloadsRunnable);
+        if (downloadManager == null || downloadTracker.size() == 0) {
+            downloadStatus.setVisibility(View.GONE);
+            return;
+        }
+        DownloadTracker.Snapshot snapshot = downloadTracker.poll();
+        DownloadTracker.Finished lastSuccess = null;
+        int failed = 0;
+        for (DownloadTracker.Finished finished : snapshot.finished) {
+            long elapsed = downloadTracker.getElapsedMillis(finished.id);
+            if (elapsed >= 0 && finished.status == DownloadManager.STATUS_SUCCESSFUL) {
+                downloadRoundTripMetric.record(elapsed);
+            } else if (finished.status != DownloadManager.STATUS_SUCCESSFUL) {
+                downloadFailedCounter.increment();
+            }
+            downloadTracker.untrack(finished.id);
+            if (finished.status == DownloadManager.STATUS_SUCCESSFUL) {
+                Uri fileUri = downloadManager.getUriForDownloadedFile(finished.id);
+                showDownloadNotification(fileUri, finished.mimeType, finished.title);
+                lastSuccess = finished;
+            } else {
+                failed++;
+            }
+        }
+        if (failed > 0) {
+            Toast.makeText(this, R.string.download_failed, Toast.LENGTH_SHORT).show();
+        }
+        if (lastSuccess != null) {
+            Toast.makeText(this, R.string.download_complete_title, Toast.LENGTH_SHORT).show();
+            if (snapshot.active == 0) {
+                showDownloadCompleteDialog(downloadManager.getUriForDownloadedFile(lastSuccess.id),
+                        lastSuccess.mimeType);
+            }
+        }
+        if (snapshot.active == 0) {
+            downloadStatus.setVisibility(View.GONE);
+            return;
+        }
+        downloadStatus.setVisibility(View.VISIBLE);
+        downloadStatus.setText(snapshot.unknownSize && snapshot.bytesTotal == 0
+                ? getString(R.string.download_progress_unknown, snapshot.active)
+                : getString(R.string.download_progress, snapshot.active, snapshot.getPercent()));
+        if (resumed) {
+            queueHandler.postDelayed(pollDownloadsRunnable, DOWNLOAD_POLL_INTERVAL_MS);
+        }
+    }
+
     private void createDownloadChannel() {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             NotificationManager manager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
@@ -469,14 +1085,15 @@ public class MainActivity extends Activity {
     }
 
     private void startDownload(String url, String userAgent, String contentDisposition, String mimeType) {
-        if (!isOnline()) {
-            showOffline();
-            return;
-        }
         if (isBlobUrl(url)) {
             requestBlobDownload(url, contentDisposition, mimeType);
             return;
         }
+        if (!isOnline()) {
+            queueDownload(url, userAgent, contentDisposition, mimeType);
+            showOffline();
+            return;
+        }
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
                 && checkSelfPermission(Manifest.permission.WRITE_EXTERNAL_STORAGE) != PackageManager.PERMISSION_GRANTED) {
             pendingDownloadUrl = url;
@@ -490,6 +1107,29 @@ public class MainActivity extends Activity {
         enqueueDownload(url, userAgent, contentDisposition, mimeType);
     }
 
+    /** Automatic clean-up deletes the user's files unattended, so it is opt-in and spelled out first. */
+    private void confirmAutoCleanup() {
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.auto_cleanup_title)
+                .setMessage(getString(R.string.auto_cleanup_message, ExportMaintenance.AUTO_KEEP_DAYS,
+                        (int) (ExportMaintenance.AUTO_MAX_TOTAL_BYTES / (1024L * 1024L))))
+                .setPositiveButton(R.string.auto_cleanup_enable, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        ExportMaintenance.setAutoCleanupEnabled(MainActivity.this, true);
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .setOnDismissListener(new DialogInterface.OnDismissListener() {
+                    @Override
+                    public void onDismiss(DialogInterface dialog) {
+                        menuAutoCleanup.setChecked(ExportMaintenance.isAutoCleanupEnabled(MainActivity.this));
+                    }
+                })
+                .create()
+                .show();
+    }
+
     private void confirmClearExcel() {
         new AlertDialog.Builder(this)
                 .setTitle(R.string.clear_excel_title)
@@ -521,82 +1161,254 @@ public class MainActivity extends Activity {
             Toast.makeText(this, R.string.clear_excel_empty, Toast.LENGTH_SHORT).show();
             return;
         }
-        int deleted = deleteDirectoryContents(dir);
-        if (deleted == 0) {
-            Toast.makeText(this, R.string.clear_excel_empty, Toast.LENGTH_SHORT).show();
-        } else {
-            Toast.makeText(this, getString(R.string.clear_excel_done, deleted), Toast.LENGTH_SHORT).show();
-        }
-    }
-
-    private int deleteDirectoryContents(File dir) {
-        File[] files = dir.listFiles();
-        if (files == null || files.length == 0) {
-            return 0;
-        }
-        int count = 0;
-        for (File file : files) {
-            if (file.isDirectory()) {
-                count += deleteDirectoryContents(file);
-                if (file.delete()) {
-                    count++;
-                }
-            } else if (file.delete()) {
-                count++;
+        final AlertDialog progressDialog = new AlertDialog.Builder(this)
+                .setTitle(R.string.clear_excel_title)
+                .setMessage(R.string.clear_excel_running)
+                .setCancelable(false)
+                .setNegativeButton(android.R.string.cancel, null)
+                .create();
+        final IoScheduler.Job[] job = new IoScheduler.Job[1];
+        Runnable task = ExportMaintenance.task(dir, ExportMaintenance.Policy.all(), new ExportMaintenance.Listener() {
+            @Override
+            public void onProgress(final int deleted, final int total) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        progressDialog.setMessage(getString(R.string.clear_excel_progress, deleted, total));
+                    }
+                });
             }
-        }
-        return count;
-    }
 
-    private void shareApp() {
-        try {
-            ApplicationInfo info = getPackageManager().getApplicationInfo(getPackageName(), 0);
-            File sourceApk = new File(info.sourceDir);
-            File shareDir = new File(getCacheDir(), "share");
-            if (!shareDir.exists()) {
-                shareDir.mkdirs();
-            }
-            File outApk = new File(shareDir, "DBGID-Resi-Exporter.apk");
-            copyFile(sourceApk, outApk);
-            Uri uri = FileProvider.getUriForFile(this, getPackageName() + ".fileprovider", outApk);
-            Intent intent = new Intent(Intent.ACTION_SEND);
-            intent.setType("application/vnd.android.package-archive");
-            intent.putExtra(Intent.EXTRA_STREAM, uri);
-            intent.putExtra(Intent.EXTRA_TEXT, getString(R.string.share_app_text));
-            intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
-            startActivity(Intent.createChooser(intent, getString(R.string.share_app_title)));
-        } catch (Exception e) {
-            Toast.makeText(this, R.string.share_app_failed, Toast.LENGTH_SHORT).show();
+            @Override
+            public void onFinished(final ExportMaintenance.Result result) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (progressDialog.isShowing()) {
+                            progressDialog.dismiss();
+                        }
+                        if (result.deleted == 0) {
+                            Toast.makeText(MainActivity.this, R.string.clear_excel_empty, Toast.LENGTH_SHORT).show();
+                        } else {
+                            Toast.makeText(MainActivity.this, getString(R.string.clear_excel_done, result.deleted),
+                                    Toast.LENGTH_SHORT).show();
+                        }
+                    }
+                });
+            }
+        });
+        try {
+            job[0] = ((GlobalApplication) getApplication()).getIoScheduler()
+                    .submit(this, "clearExcel", task, 0L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (job[0] == null) {
+            Toast.makeText(this, R.string.download_busy, Toast.LENGTH_SHORT).show();
+            return;
         }
+        progressDialog.show();
+        progressDialog.getButton(DialogInterface.BUTTON_NEGATIVE).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                job[0].cancel();
+                progressDialog.dismiss();
+            }
+        });
     }
 
-    private void copyFile(File source, File target) throws IOException {
-        java.io.InputStream input = null;
-        java.io.OutputStream output = null;
+    /**
+     * The first listing after start-up or a memory trim scans the whole
+     * export directory, so it runs on the IO scheduler.
+     */
+    private void showExportHistory(final int sortOrder) {
+        final GlobalApplication app = (GlobalApplication) getApplication();
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                final List<ExportDirectoryIndex.Entry> entries = app.getExportIndex().list(sortOrder);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!isFinishing()) {
+                            showExportHistory(sortOrder, entries);
+                        }
+                    }
+                });
+            }
+        };
         try {
-            input = new java.io.FileInputStream(source);
-            output = new java.io.FileOutputStream(target);
-            byte[] buffer = new byte[8192];
-            int read;
-            while ((read = input.read(buffer)) != -1) {
-                output.write(buffer, 0, read);
+            if (app.getIoScheduler().submit(this, "exportHistory", task, 0L) == null) {
+                Toast.makeText(this, R.string.download_busy, Toast.LENGTH_SHORT).show();
             }
-        } finally {
-            if (input != null) {
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void showExportHistory(final int sortOrder, final List<ExportDirectoryIndex.Entry> entries) {
+        if (entries.isEmpty()) {
+            Toast.makeText(this, R.string.history_empty, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        DateFormat format = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT);
+        String[] items = new String[entries.size()];
+        for (int i = 0; i < items.length; i++) {
+            ExportDirectoryIndex.Entry entry = entries.get(i);
+            items[i] = entry.name + "\n" + format.format(new Date(entry.lastModified))
+                    + " \u00b7 " + Formatter.formatShortFileSize(this, entry.size);
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.history_title)
+                .setItems(items, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        File file = new File(getDownloadDir(), entries.get(which).name);
+                        String ext = MimeTypeMap.getFileExtensionFromUrl(Uri.fromFile(file).toString());
+                        openDownloadedFile(getFileUri(file), MimeTypeMap.getSingleton().getMimeTypeFromExtension(ext));
+                    }
+                })
+                .setNeutralButton(sortOrder == ExportDirectoryIndex.SORT_NAME
+                        ? R.string.history_sort_newest : R.string.history_sort_name,
+                        new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        showExportHistory(sortOrder == ExportDirectoryIndex.SORT_NAME
+                                ? ExportDirectoryIndex.SORT_NEWEST : ExportDirectoryIndex.SORT_NAME);
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    private void showDiagnostics() {
+        GlobalApplication app = (GlobalApplication) getApplication();
+        StringBuilder text = new StringBuilder(app.getMetrics().format());
+        text.append('\n').append(app.getWebAssetCache().getStats()).append('\n');
+        List<GlobalApplication.CrashHandler.Stall> stalls = GlobalApplication.CrashHandler.getInstance().getWorstStalls();
+        for (int i = 0; i < Math.min(5, stalls.size()); i++) {
+            GlobalApplication.CrashHandler.Stall stall = stalls.get(i);
+            text.append("\nstall ").append(stall.durationMs).append(" ms ").append(stall.message);
+        }
+        TextView textView = new TextView(this);
+        int padding = (int) (16 * getResources().getDisplayMetrics().density);
+        textView.setPadding(padding, padding, padding, padding);
+        textView.setTypeface(Typeface.MONOSPACE);
+        textView.setTextSize(12);
+        textView.setTextIsSelectable(true);
+        textView.setText(text.length() > 0 ? text : getString(R.string.diagnostics_empty));
+        ScrollView scrollView = new ScrollView(this);
+        scrollView.addView(textView);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.diagnostics_title)
+                .setView(scrollView)
+                .setNeutralButton(R.string.diagnostics_dump, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        dumpDiagnostics();
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    private void dumpDiagnostics() {
+        final GlobalApplication app = (GlobalApplication) getApplication();
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                File file = new File(new File(getCacheDir(), "diagnostics"),
+                        "diagnostics_" + System.currentTimeMillis() + ".json");
                 try {
-                    input.close();
-                } catch (IOException ignored) {
+                    JSONObject json = app.getMetrics().toJson();
+                    json.put("webAssetCache", app.getWebAssetCache().getStats());
+                    json.put("recognitionCache", recognitionCache.getStats());
+                    JSONArray stalls = new JSONArray();
+                    for (GlobalApplication.CrashHandler.Stall stall
+                            : GlobalApplication.CrashHandler.getInstance().getWorstStalls()) {
+                        stalls.put(stall.toString());
+                    }
+                    json.put("stalls", stalls);
+                    json.put("device", Build.MANUFACTURER + " " + Build.MODEL + " (" + Build.VERSION.SDK_INT + ")");
+                    GlobalApplication.write(file, json.toString(2).getBytes("UTF-8"));
+                } catch (JSONException e) {
+                    showToast(R.string.diagnostics_dump_failed);
+                    return;
+                } catch (IOException e) {
+                    showToast(R.string.diagnostics_dump_failed);
+                    return;
                 }
+                final String path = file.getAbsolutePath();
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Toast.makeText(MainActivity.this, getString(R.string.diagnostics_dumped, path),
+                                Toast.LENGTH_LONG).show();
+                    }
+                });
             }
-            if (output != null) {
+        };
+        try {
+            app.getIoScheduler().submit(this, "dumpDiagnostics", task, 0L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void shareApp() {
+        final File sourceApk;
+        try {
+            ApplicationInfo info = getPackageManager().getApplicationInfo(getPackageName(), 0);
+            sourceApk = new File(info.sourceDir);
+        } catch (PackageManager.NameNotFoundException e) {
+            Toast.makeText(this, R.string.share_app_failed, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        final File outApk = new File(new File(getCacheDir(), "share"), "DBGID-Resi-Exporter.apk");
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
                 try {
-                    output.close();
-                } catch (IOException ignored) {
+                    copyFile(sourceApk, outApk);
+                } catch (IOException e) {
+                    showToast(R.string.share_app_failed);
+                    return;
                 }
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        startShareIntent(outApk);
+                    }
+                });
+            }
+        };
+        try {
+            if (((GlobalApplication) getApplication()).getIoScheduler().submit(this, "shareApp", task, 0L) == null) {
+                Toast.makeText(this, R.string.download_busy, Toast.LENGTH_SHORT).show();
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void startShareIntent(File outApk) {
+        try {
+            Uri uri = FileProvider.getUriForFile(this, getPackageName() + ".fileprovider", outApk);
+            Intent intent = new Intent(Intent.ACTION_SEND);
+            intent.setType("application/vnd.android.package-archive");
+            intent.putExtra(Intent.EXTRA_STREAM, uri);
+            intent.putExtra(Intent.EXTRA_TEXT, getString(R.string.share_app_text));
+            intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+            startActivity(Intent.createChooser(intent, getString(R.string.share_app_title)));
+        } catch (Exception e) {
+            Toast.makeText(this, R.string.share_app_failed, Toast.LENGTH_SHORT).show();
         }
     }
 
+    private void copyFile(File source, File target) throws IOException {
+        FileIo.copyFileIfChanged(source, target);
+    }
+
     private void enqueueDownload(String url, String userAgent, String contentDisposition, String mimeType) {
         if (downloadManager == null) {
             Toast.makeText(this, R.string.download_failed, Toast.LENGTH_SHORT).show();
@@ -617,8 +1429,9 @@ public class MainActivity extends Activity {
         request.setDescription(getString(R.string.download_start));
         request.setNotificationVisibility(DownloadManager.Request.VISIBILITY_VISIBLE_NOTIFY_COMPLETED);
         request.setDestinationInExternalPublicDir(Environment.DIRECTORY_DOWNLOADS, "DBGID-XLXS/" + fileName);
-        lastDownloadId = downloadManager.enqueue(request);
+        downloadTracker.track(downloadManager.enqueue(request));
         Toast.makeText(this, R.string.download_enqueued, Toast.LENGTH_SHORT).show();
+        refreshDownloads();
     }
 
     private void showDownloadCompleteDialog(final Uri fileUri, final String mimeType) {
@@ -684,6 +1497,11 @@ public class MainActivity extends Activity {
     }
 
     private void fetchBlobAndSave(String blobUrl, String fileName, String mimeType) {
+        blobStartedAt = SystemClock.elapsedRealtime();
+        if (isBinaryBlobTransferSupported()) {
+            startBinaryBlobTransfer(blobUrl, fileName, mimeType);
+            return;
+        }
         String safeUrl = escapeJsString(blobUrl);
         String safeName = escapeJsString(fileName);
         String safeMime = escapeJsString(mimeType != null ? mimeType : "");
@@ -694,19 +1512,30 @@ public class MainActivity extends Activity {
                 + "var xhr=new XMLHttpRequest();"
                 + "xhr.open('GET', url, true);"
                 + "xhr.responseType='blob';"
+                + "var chunkSize=" + BLOB_CHUNK_SIZE + ";"
+                + "var bridge=window.AndroidBlobDownloader;"
                 + "xhr.onload=function(){"
                 + "if (this.status===200 || this.status===0){"
                 + "var blob=this.response;"
+                + "var handle=bridge.openChunked(fileName, mimeType||(blob&&blob.type?blob.type:''), blob.size);"
+                + "if(!handle){bridge.onError('open_failed');return;}"
+                + "var offset=0;"
+                + "var next=function(){"
+                + "if(offset>=blob.size){bridge.commitChunked(handle);return;}"
                 + "var reader=new FileReader();"
                 + "reader.onloadend=function(){"
                 + "var data=reader.result||'';"
                 + "var base64=data.split(',')[1]||'';"
-                + "window.AndroidBlobDownloader.saveBase64(base64, fileName, mimeType||(blob&&blob.type?blob.type:''));"
+                + "if(reader.error||!bridge.appendChunk(handle, base64)){bridge.abortChunked(handle);return;}"
+                + "offset+=chunkSize;"
+                + "next();"
+                + "};"
+                + "reader.readAsDataURL(blob.slice(offset, offset+chunkSize));"
                 + "};"
-                + "reader.readAsDataURL(blob);"
-                + "}else{window.AndroidBlobDownloader.onError('status_'+this.status);}"
+                + "next();"
+                + "}else{bridge.onError('status_'+this.status);}"
                 + "};"
-                + "xhr.onerror=function(){window.AndroidBlobDownloader.onError('xhr_error');};"
+                + "xhr.onerror=function(){bridge.onError('xhr_error');};"
                 + "xhr.send();"
                 + "})();";
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
@@ -716,6 +1545,76 @@ public class MainActivity extends Activity {
         }
     }
 
+    private boolean isBinaryBlobTransferSupported() {
+        return WebViewFeature.isFeatureSupported(WebViewFeature.CREATE_WEB_MESSAGE_CHANNEL)
+                && WebViewFeature.isFeatureSupported(WebViewFeature.POST_WEB_MESSAGE)
+                && WebViewFeature.isFeatureSupported(WebViewFeature.WEB_MESSAGE_PORT_POST_MESSAGE)
+                && WebViewFeature.isFeatureSupported(WebViewFeature.WEB_MESSAGE_PORT_SET_MESSAGE_CALLBACK)
+                && WebViewFeature.isFeatureSupported(WebViewFeature.WEB_MESSAGE_ARRAY_BUFFER);
+    }
+
+    private void startBinaryBlobTransfer(String blobUrl, String fileName, String mimeType) {
+        if (blobPortThread == null) {
+            blobPortThread = new HandlerThread("blob-port");
+            blobPortThread.start();
+            blobPortHandler = new Handler(blobPortThread.getLooper());
+        }
+        WebMessagePortCompat[] ports = WebViewCompat.createWebMessageChannel(webView);
+        ports[0].setWebMessageCallback(blobPortHandler, new BlobPortReceiver(fileName, mimeType));
+        // Only the app's own origin gets the port; after a navigation away
+        // the message is dropped rather than handed to another site.
+        Uri webUrl = Uri.parse(getString(R.string.web_url));
+        WebViewCompat.postWebMessage(webView,
+                new WebMessageCompat("dbg-blob:" + blobUrl, new WebMessagePortCompat[]{ports[1]}),
+                Uri.parse(webUrl.getScheme() + "://" + webUrl.getAuthority()));
+    }
+
+    /**
+     * Reads the resi barcodes off the chosen photos and stores them, each
+     * with the SHA-1 of the photo it came from, the same hash the
+     * recognition cache keys on. hashes[i] may be null for an unreadable
+     * image.
+     */
+    private void decodeResiLabels(Uri[] uris, final String[] hashes) {
+        resiBarcodeDecoder.decodeAll(uris, new ResiBarcodeDecoder.Callback() {
+            @Override
+            public void onDecoded(Map<String, Integer> decoded) {
+                if (decoded.isEmpty()) {
+                    return;
+                }
+                final List<String> trackingNumbers = new ArrayList<String>(decoded.keySet());
+                long now = System.currentTimeMillis();
+                List<ResiDatabase.Record> records = new ArrayList<ResiDatabase.Record>();
+                for (Map.Entry<String, Integer> entry : decoded.entrySet()) {
+                    records.add(new ResiDatabase.Record(entry.getKey(), null, now, hashes[entry.getValue()]));
+                }
+                final List<String> duplicates = new ArrayList<String>(trackingNumbers);
+                for (ResiDatabase.Record record : resiDatabase.upsertAll(records)) {
+                    duplicates.remove(record.trackingNumber);
+                }
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        String json = new JSONArray(trackingNumbers).toString();
+                        String duplicateJson = new JSONArray(duplicates).toString();
+                        runJavascript("(function(d,dup){"
+                                + "if(window.onAndroidResiDecoded){window.onAndroidResiDecoded(d,dup);}"
+                                + "try{window.dispatchEvent(new CustomEvent('dbg-resi-decoded',{detail:d}));}catch(e){}"
+                                + "})(" + json + "," + duplicateJson + ");");
+                    }
+                });
+            }
+        });
+    }
+
+    private void runJavascript(String js) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            webView.evaluateJavascript(js, null);
+        } else {
+            webView.loadUrl("javascript:" + js);
+        }
+    }
+
     private void injectBlobDownloadSupport() {
         String js = "(function(){"
                 + "if(window.__dbg_blob_installed){return;}"
@@ -732,6 +1631,38 @@ public class MainActivity extends Activity {
                 + "window.AndroidBlobDownloader.requestBlobDownload(href,name,type);"
                 + "}"
                 + "},true);"
+                + "window.addEventListener('message',function(e){"
+                // postWebMessage arrives with an empty origin and no source; a
+                // frame's message carries its own origin and window.
+                + "if((e.origin!==''&&e.origin!==location.origin)||(e.source!==null&&e.source!==window)){return;}"
+                + "if(typeof e.data!=='string'||e.data.indexOf('dbg-blob:')!==0||!e.ports||!e.ports.length){return;}"
+                + "var port=e.ports[0];"
+                + "var chunkSize=" + BLOB_CHUNK_SIZE + ";"
+                + "var blob=null;"
+                + "var offset=0;"
+                + "var next=function(){"
+                + "if(offset>=blob.size){port.postMessage('commit');return;}"
+                + "var reader=new FileReader();"
+                + "reader.onloadend=function(){"
+                + "if(reader.error||!reader.result){port.postMessage('error:read');return;}"
+                + "offset+=chunkSize;"
+                + "port.postMessage(reader.result,[reader.result]);"
+                + "};"
+                + "reader.readAsArrayBuffer(blob.slice(offset, offset+chunkSize));"
+                + "};"
+                + "port.onmessage=function(m){if(m.data==='ack'){next();}};"
+                + "var xhr=new XMLHttpRequest();"
+                + "xhr.open('GET', e.data.substring(9), true);"
+                + "xhr.responseType='blob';"
+                + "xhr.onload=function(){"
+                + "if(this.status===200 || this.status===0){"
+                + "blob=this.response;"
+                + "port.postMessage('size:'+blob.size+':'+(blob.type||''));"
+                + "}else{port.postMessage('error:status_'+this.status);}"
+                + "};"
+                + "xhr.onerror=function(){port.postMessage('error:xhr_error');};"
+                + "xhr.send();"
+                + "});"
                 + "})();";
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
             webView.evaluateJavascript(js, null);
@@ -751,57 +1682,101 @@ public class MainActivity extends Activity {
         }
     }
 
-    private void saveBase64File(final String base64Data, final String fileName, final String mimeType) {
+    /**
+     * Queues the save on its own lane and returns at once, so the JavaBridge
+     * thread is never parked. Returns "queued", "busy" (retry later) or "failed".
+     */
+    private String saveBase64File(String base64Data, String fileName, String mimeType) {
         if (base64Data == null || base64Data.length() == 0) {
             showToast(R.string.download_failed);
-            return;
+            return SAVE_FAILED;
         }
-        final String safeName = ensureFileName(fileName, mimeType);
-        final String safeMime = (mimeType == null || mimeType.length() == 0)
+        String safeName = ensureFileName(fileName, mimeType);
+        String safeMime = (mimeType == null || mimeType.length() == 0)
                 ? "application/octet-stream" : mimeType;
-        new Thread(new Runnable() {
+        Runnable task = new Base64SaveTask(base64Data, safeName, safeMime, exportAllocator,
+                base64SaveCallback);
+        try {
+            IoScheduler.Job job = ((GlobalApplication) getApplication()).getSaveScheduler()
+                    .submit(this, "saveBase64:" + safeName, task, 0L);
+            if (job == null) {
+                showToast(R.string.download_busy);
+                return SAVE_BUSY;
+            }
+            return SAVE_QUEUED;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            showToast(R.string.download_failed);
+            return SAVE_FAILED;
+        }
+    }
+
+    private String openChunkedFile(String fileName, String mimeType, long totalSize) {
+        String safeName = ensureFileName(fileName, mimeType);
+        String safeMime = (mimeType == null || mimeType.length() == 0)
+                ? "application/octet-stream" : mimeType;
+        try {
+            String handle = chunkedBlobWriter.open(safeName, safeMime, totalSize);
+            showBlobProgress(0, totalSize);
+            return handle;
+        } catch (IOException e) {
+            showToast(R.string.download_failed);
+            return null;
+        }
+    }
+
+    private void commitChunkedFile(String handle) {
+        ChunkedBlobWriter.Session session = chunkedBlobWriter.commit(handle);
+        hideBlobProgress();
+        if (session == null) {
+            showToast(R.string.download_failed);
+            return;
+        }
+        Log.i(TAG, "Saved " + session.getWritten() + " bytes in "
+                + session.getElapsedMillis() + " ms: " + session.target.getName());
+        onBlobSaved(session.target, session.mimeType);
+    }
+
+    private void abortChunkedFile(String handle) {
+        chunkedBlobWriter.abort(handle);
+        hideBlobProgress();
+        showToast(R.string.download_failed);
+    }
+
+    private void showBlobProgress(final long written, final long total) {
+        runOnUiThread(new Runnable() {
             @Override
             public void run() {
-                byte[] data;
-                try {
-                    data = Base64.decode(base64Data, Base64.DEFAULT);
-                } catch (IllegalArgumentException e) {
-                    showToast(R.string.download_failed);
-                    return;
-                }
-                File dir = getDownloadDir();
-                if (!dir.exists() && !dir.mkdirs()) {
-                    showToast(R.string.download_failed);
-                    return;
-                }
-                final File outFile = makeUniqueFile(new File(dir, safeName));
-                FileOutputStream output = null;
-                try {
-                    output = new FileOutputStream(outFile);
-                    output.write(data);
-                    output.flush();
-                } catch (IOException e) {
-                    showToast(R.string.download_failed);
-                    return;
-                } finally {
-                    if (output != null) {
-                        try {
-                            output.close();
-                        } catch (IOException ignored) {
-                        }
-                    }
-                }
-                final Uri fileUri = getFileUri(outFile);
-                runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        Toast.makeText(MainActivity.this, R.string.download_complete_title, Toast.LENGTH_SHORT).show();
-                        showDownloadCompleteDialog(fileUri, safeMime);
-                        showDownloadNotification(fileUri, safeMime, outFile.getName());
-                    }
-                });
+                progressBar.setVisibility(View.VISIBLE);
+                progressBar.setProgress(total > 0 ? (int) (written * 100 / total) : 0);
             }
-        }).start();
+        });
+    }
+
+    private void hideBlobProgress() {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                progressBar.setVisibility(View.GONE);
+            }
+        });
+    }
+
+    private void onBlobSaved(final File outFile, final String mimeType) {
+        long startedAt = blobStartedAt;
+        if (startedAt > 0) {
+            blobRoundTripMetric.record(SystemClock.elapsedRealtime() - startedAt);
+            blobStartedAt = 0;
+        }
+        final Uri fileUri = getFileUri(outFile);
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(MainActivity.this, R.string.download_complete_title, Toast.LENGTH_SHORT).show();
+                showDownloadCompleteDialog(fileUri, mimeType);
+                showDownloadNotification(fileUri, mimeType, outFile.getName());
+            }
+        });
     }
 
     private void showToast(final int resId) {
@@ -814,7 +1789,7 @@ public class MainActivity extends Activity {
     }
 
     private File getDownloadDir() {
-        return new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS), "DBGID-XLXS");
+        return GlobalApplication.getExportDir();
     }
 
     private Uri getFileUri(File file) {
@@ -824,40 +1799,10 @@ public class MainActivity extends Activity {
         return Uri.fromFile(file);
     }
 
-    private File makeUniqueFile(File file) {
-        if (!file.exists()) {
-            return file;
-        }
-        String name = file.getName();
-        String base = name;
-        String ext = "";
-        int dot = name.lastIndexOf('.');
-        if (dot > 0) {
-            base = name.substring(0, dot);
-            ext = name.substring(dot);
-        }
-        int index = 1;
-        File candidate;
-        do {
-            candidate = new File(file.getParentFile(), base + "(" + index + ")" + ext);
-            index++;
-        } while (candidate.exists());
-        return candidate;
-    }
-
     private String ensureFileName(String fileName, String mimeType) {
-        String name = fileName != null ? fileName.trim() : "";
-        if (name.length() == 0) {
-            name = "download";
-        }
-        name = sanitizeFileName(name);
-        if (name.indexOf('.') == -1 && mimeType != null && mimeType.length() > 0) {
-            String ext = MimeTypeMap.getSingleton().getExtensionFromMimeType(mimeType);
-            if (ext != null && ext.length() > 0) {
-                name = name + "." + ext;
-            }
-        }
-        return name;
+        String ext = mimeType != null && mimeType.length() > 0
+                ? MimeTypeMap.getSingleton().getExtensionFromMimeType(mimeType) : null;
+        return FileNames.ensure(fileName, ext);
     }
 
     private String resolveBlobFileName(String blobUrl, String contentDispositionOrFileName, String mimeType) {
@@ -877,17 +1822,11 @@ public class MainActivity extends Activity {
     }
 
     private String sanitizeFileName(String fileName) {
-        return fileName.replaceAll("[\\\\/:*?\"<>|]", "_");
+        return FileNames.sanitize(fileName);
     }
 
     private String escapeJsString(String value) {
-        if (value == null) {
-            return "";
-        }
-        return value.replace("\\", "\\\\")
-                .replace("'", "\\'")
-                .replace("\n", "\\n")
-                .replace("\r", "");
+        return FileNames.escapeJs(value);
     }
 
     private boolean isBlobUrl(String url) {
@@ -906,13 +1845,390 @@ public class MainActivity extends Activity {
         }
 
         @JavascriptInterface
-        public void saveBase64(final String base64Data, final String fileName, final String mimeType) {
-            saveBase64File(base64Data, fileName, mimeType);
+        public String saveBase64(final String base64Data, final String fileName, final String mimeType) {
+            return saveBase64File(base64Data, fileName, mimeType);
+        }
+
+        @JavascriptInterface
+        public String openChunked(String fileName, String mimeType, double totalSize) {
+            return openChunkedFile(fileName, mimeType, (long) totalSize);
+        }
+
+        @JavascriptInterface
+        public boolean appendChunk(String handle, String base64Chunk) {
+            return chunkedBlobWriter.append(handle, base64Chunk);
+        }
+
+        @JavascriptInterface
+        public void commitChunked(String handle) {
+            commitChunkedFile(handle);
+        }
+
+        @JavascriptInterface
+        public void abortChunked(String handle) {
+            abortChunkedFile(handle);
         }
 
         @JavascriptInterface
         public void onError(String message) {
+            blobErrorCounter.increment();
+            showToast(R.string.download_failed);
+        }
+    }
+
+    private String beginXlsxExport(String fileName, String sheetName) {
+        String name = fileName != null && fileName.trim().length() > 0 ? fileName.trim() : "resi.xlsx";
+        if (!name.toLowerCase(Locale.US).endsWith(".xlsx")) {
+            name = name + ".xlsx";
+        }
+        File target;
+        try {
+            target = exportAllocator.allocate(sanitizeFileName(name));
+        } catch (IOException e) {
+            showToast(R.string.download_failed);
+            return null;
+        }
+        File partFile = new File(target.getPath() + ".part");
+        FileOutputStream output = null;
+        try {
+            output = new FileOutputStream(partFile);
+            XlsxExport export = new XlsxExport(target, partFile, new XlsxStreamWriter(output, sheetName));
+            String handle = "xlsx-" + nextXlsxExportId.getAndIncrement();
+            synchronized (xlsxExports) {
+                xlsxExports.put(handle, export);
+            }
+            return handle;
+        } catch (IOException e) {
+            GlobalApplication.closeIO(output);
+            partFile.delete();
+            exportAllocator.release(target);
+            showToast(R.string.download_failed);
+            return null;
+        }
+    }
+
+    private boolean appendXlsxRows(String handle, String rowsJson) {
+        XlsxExport export;
+        synchronized (xlsxExports) {
+            export = xlsxExports.get(handle);
+        }
+        if (export == null) {
+            return false;
+        }
+        export.lastUsedAt = SystemClock.elapsedRealtime();
+        try {
+            JSONArray rows = new JSONArray(rowsJson);
+            for (int i = 0; i < rows.length(); i++) {
+                JSONArray row = rows.optJSONArray(i);
+                if (row == null) {
+                    export.writer.writeRow(null);
+                    continue;
+                }
+                String[] cells = new String[row.length()];
+                for (int j = 0; j < cells.length; j++) {
+                    cells[j] = row.isNull(j) ? null : row.optString(j);
+                }
+                export.writer.writeRow(cells);
+            }
+            return true;
+        } catch (JSONException e) {
+            cancelXlsxExport(handle);
+            return false;
+        } catch (IOException e) {
+            cancelXlsxExport(handle);
+            return false;
+        }
+    }
+
+    private void finishXlsxExport(String handle) {
+        XlsxExport export;
+        synchronized (xlsxExports) {
+            export = xlsxExports.remove(handle);
+        }
+        if (export == null) {
+            showToast(R.string.download_failed);
+            return;
+        }
+        try {
+            export.writer.close();
+        } catch (IOException e) {
+            discardXlsxExport(export);
+            showToast(R.string.download_failed);
+            return;
+        }
+        if (!export.partFile.renameTo(export.target)) {
+            discardXlsxExport(export);
             showToast(R.string.download_failed);
+            return;
+        }
+        onBlobSaved(export.target, XLSX_MIME_TYPE);
+    }
+
+    private void cancelXlsxExport(String handle) {
+        XlsxExport export;
+        synchronized (xlsxExports) {
+            export = xlsxExports.remove(handle);
+        }
+        if (export != null) {
+            discardXlsxExport(export);
+        }
+    }
+
+    private void cancelAllXlsxExports() {
+        List<XlsxExport> pending;
+        synchronized (xlsxExports) {
+            pending = new ArrayList<XlsxExport>(xlsxExports.values());
+            xlsxExports.clear();
+        }
+        for (XlsxExport export : pending) {
+            discardXlsxExport(export);
+        }
+    }
+
+    /** Discards exports the page has not written to for idleMillis; returns how many are left. */
+    private int cancelIdleXlsxExports(long idleMillis) {
+        long cutoff = SystemClock.elapsedRealtime() - idleMillis;
+        List<XlsxExport> idle = new ArrayList<XlsxExport>();
+        int open;
+        synchronized (xlsxExports) {
+            Iterator<XlsxExport> iterator = xlsxExports.values().iterator();
+            while (iterator.hasNext()) {
+                XlsxExport export = iterator.next();
+                if (export.lastUsedAt < cutoff) {
+                    iterator.remove();
+                    idle.add(export);
+                }
+            }
+            open = xlsxExports.size();
+        }
+        for (XlsxExport export : idle) {
+            discardXlsxExport(export);
+        }
+        return open;
+    }
+
+    /**
+     * After a configuration change the old WebView can keep calling this
+     * instance's bridges, so its chunked and xlsx sessions are left open and
+     * only discarded once they sit idle.
+     */
+    private void abortOrphanedTransfers() {
+        queueHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                int open = chunkedBlobWriter.abortIdle(ORPHAN_TRANSFER_IDLE_MS)
+                        + cancelIdleXlsxExports(ORPHAN_TRANSFER_IDLE_MS);
+                if (open > 0) {
+                    queueHandler.postDelayed(this, ORPHAN_TRANSFER_IDLE_MS);
+                }
+            }
+        }, ORPHAN_TRANSFER_IDLE_MS);
+    }
+
+    private void discardXlsxExport(XlsxExport export) {
+        GlobalApplication.closeIO(export.writer);
+        export.partFile.delete();
+        exportAllocator.release(export.target);
+    }
+
+    private static final class XlsxExport {
+        final File target;
+        final File partFile;
+        final XlsxStreamWriter writer;
+        volatile long lastUsedAt = SystemClock.elapsedRealtime();
+
+        XlsxExport(File target, File partFile, XlsxStreamWriter writer) {
+            this.target = target;
+            this.partFile = partFile;
+            this.writer = writer;
+        }
+    }
+
+    private class XlsxExportInterface {
+        @JavascriptInterface
+        public String begin(String fileName, String sheetName) {
+            return beginXlsxExport(fileName, sheetName);
+        }
+
+        @JavascriptInterface
+        public boolean appendRows(String handle, String rowsJson) {
+            return appendXlsxRows(handle, rowsJson);
+        }
+
+        @JavascriptInterface
+        public void finish(String handle) {
+            finishXlsxExport(handle);
+        }
+
+        @JavascriptInterface
+        public void cancel(String handle) {
+            cancelXlsxExport(handle);
+        }
+    }
+
+    private static JSONObject toJson(ResiDatabase.Record record) throws JSONException {
+        JSONObject object = new JSONObject();
+        object.put("resi", record.trackingNumber);
+        object.put("status", record.status != null ? record.status : JSONObject.NULL);
+        object.put("scannedAt", record.scannedAt);
+        object.put("imageHash", record.imageHash != null ? record.imageHash : JSONObject.NULL);
+        return object;
+    }
+
+    private class RecognitionCacheInterface {
+        @JavascriptInterface
+        public void attach() {
+            recognitionCacheAttached = true;
+        }
+
+        @JavascriptInterface
+        public String get(String hash) {
+            return recognitionCache.get(hash);
+        }
+
+        @JavascriptInterface
+        public boolean put(String hash, String result) {
+            recognitionCacheAttached = true;
+            // The page stores a result once the upload went through; only
+            // then may a later photo be dropped as a copy of this one.
+            nearDuplicateDetector.confirm(hash);
+            return recognitionCache.put(hash, result);
+        }
+
+        @JavascriptInterface
+        public String stats() {
+            try {
+                return recognitionCache.getStats().toString();
+            } catch (JSONException e) {
+                return null;
+            }
+        }
+    }
+
+    private class ResiStoreInterface {
+        @JavascriptInterface
+        public String upsert(String recordsJson) {
+            try {
+                JSONArray array = new JSONArray(recordsJson);
+                List<ResiDatabase.Record> records = new ArrayList<ResiDatabase.Record>(array.length());
+                long now = System.currentTimeMillis();
+                for (int i = 0; i < array.length(); i++) {
+                    JSONObject object = array.optJSONObject(i);
+                    if (object == null) {
+                        continue;
+                    }
+                    String trackingNumber = object.optString("resi", "").trim();
+                    records.add(new ResiDatabase.Record(trackingNumber,
+                            object.isNull("status") ? null : object.optString("status", null),
+                            object.optLong("scannedAt", now),
+                            object.isNull("imageHash") ? null : object.optString("imageHash", null)));
+                }
+                JSONArray inserted = new JSONArray();
+                for (ResiDatabase.Record record : resiDatabase.upsertAll(records)) {
+                    inserted.put(record.trackingNumber);
+                }
+                return inserted.toString();
+            } catch (JSONException e) {
+                return null;
+            }
+        }
+
+        @JavascriptInterface
+        public String find(String trackingNumber) {
+            ResiDatabase.Record record = resiDatabase.find(trackingNumber != null ? trackingNumber.trim() : null);
+            try {
+                return record != null ? toJson(record).toString() : null;
+            } catch (JSONException e) {
+                return null;
+            }
+        }
+
+        @JavascriptInterface
+        public boolean contains(String trackingNumber) {
+            return resiDatabase.find(trackingNumber != null ? trackingNumber.trim() : null) != null;
+        }
+
+        @JavascriptInterface
+        public String list(double sinceMillis, int limit) {
+            JSONArray array = new JSONArray();
+            try {
+                for (ResiDatabase.Record record : resiDatabase.listSince((long) sinceMillis, limit)) {
+                    array.put(toJson(record));
+                }
+            } catch (JSONException e) {
+                return null;
+            }
+            return array.toString();
+        }
+    }
+
+    private class BlobPortReceiver extends WebMessagePortCompat.WebMessageCallbackCompat {
+        private final String fileName;
+        private final String mimeType;
+        private String handle;
+
+        BlobPortReceiver(String fileName, String mimeType) {
+            this.fileName = fileName;
+            this.mimeType = mimeType;
+        }
+
+        @Override
+        public void onMessage(WebMessagePortCompat port, WebMessageCompat message) {
+            if (message == null) {
+                return;
+            }
+            if (message.getType() == WebMessageCompat.TYPE_ARRAY_BUFFER) {
+                if (chunkedBlobWriter.append(handle, message.getArrayBuffer())) {
+                    port.postMessage(new WebMessageCompat("ack"));
+                } else {
+                    finish(port);
+                    hideBlobProgress();
+                    showToast(R.string.download_failed);
+                }
+                return;
+            }
+            String data = message.getData();
+            if (data == null) {
+                return;
+            }
+            if (data.startsWith("size:") && handle == null) {
+                int split = data.indexOf(':', 5);
+                long size = parseSize(split > 0 ? data.substring(5, split) : data.substring(5));
+                String type = split > 0 ? data.substring(split + 1) : "";
+                handle = openChunkedFile(fileName,
+                        mimeType != null && mimeType.length() > 0 ? mimeType : type, size);
+                if (handle != null) {
+                    port.postMessage(new WebMessageCompat("ack"));
+                } else {
+                    finish(port);
+                }
+            } else if (data.equals("commit")) {
+                String committed = handle;
+                handle = null;
+                finish(port);
+                commitChunkedFile(committed);
+            } else if (data.startsWith("error:")) {
+                String aborted = handle;
+                handle = null;
+                finish(port);
+                abortChunkedFile(aborted);
+            }
+        }
+
+        private void finish(WebMessagePortCompat port) {
+            if (handle != null) {
+                chunkedBlobWriter.abort(handle);
+                handle = null;
+            }
+            port.close();
+        }
+
+        private long parseSize(String value) {
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                return -1L;
+            }
         }
     }
 
@@ -943,24 +2259,206 @@ public class MainActivity extends Activity {
         offlineView.setVisibility(View.VISIBLE);
     }
 
-    private boolean isOnline() {
-        ConnectivityManager cm = (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
-        if (cm == null) {
-            return false;
+    private void onNetworkRestored() {
+        if (webContainer.getVisibility() == View.VISIBLE && offlineView.getVisibility() == View.VISIBLE) {
+            offlineView.setVisibility(View.GONE);
+            if (webView.getUrl() == null) {
+                if (!restoreWebViewState()) {
+                    loadHome();
+                }
+            } else {
+                webView.reload();
+            }
         }
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-            Network network = cm.getActiveNetwork();
-            if (network == null) {
-                return false;
+        drainQueue();
+    }
+
+    private void onNetworkLost() {
+        if (webContainer.getVisibility() == View.VISIBLE) {
+            showOffline();
+        }
+        endDrain();
+    }
+
+    private void queueDownload(String url, String userAgent, String contentDisposition, String mimeType) {
+        JSONObject payload = new JSONObject();
+        try {
+            payload.put("url", url);
+            payload.put("userAgent", userAgent);
+            payload.put("contentDisposition", contentDisposition);
+            payload.put("mimeType", mimeType);
+        } catch (JSONException e) {
+            return;
+        }
+        offlineJobQueue.enqueue(OfflineJobQueue.TYPE_DOWNLOAD, payload.toString());
+        Toast.makeText(this, R.string.queue_job_added, Toast.LENGTH_SHORT).show();
+    }
+
+    private void drainQueue() {
+        queueHandler.removeCallbacks(drainQueueRunnable);
+        if (offlineJobQueue.size() == 0 || !isOnline()) {
+            endDrain();
+            return;
+        }
+        if (memoryCoordinator.isBackgroundWorkPaused()) {
+            scheduleQueueDrain();
+            return;
+        }
+        // Until permission is granted or the WebView exists those jobs wait
+        // untouched; onRequestPermissionsResult and onPageFinished drain again.
+        boolean downloads = hasStoragePermission();
+        boolean pages = webView != null;
+        List<OfflineJobQueue.Job> jobs = offlineJobQueue.takeReady(System.currentTimeMillis(), QUEUE_DRAIN_BATCH,
+                downloads, pages);
+        if (jobs.isEmpty() && offlineJobQueue.getInFlightCount() == 0) {
+            // Everything left is backing off; don't keep the progress up meanwhile.
+            endDrain();
+            scheduleQueueDrain();
+            return;
+        }
+        if (drainStartedAt == 0) {
+            drainStartedAt = SystemClock.elapsedRealtime();
+            drainBaseCompleted = offlineJobQueue.getCompletedCount();
+        }
+        final List<OfflineJobQueue.Job> pageJobs = new ArrayList<OfflineJobQueue.Job>();
+        for (OfflineJobQueue.Job job : jobs) {
+            if (OfflineJobQueue.TYPE_DOWNLOAD.equals(job.type)) {
+                drainDownloadJob(job);
+            } else {
+                pageJobs.add(job);
             }
-            NetworkCapabilities caps = cm.getNetworkCapabilities(network);
-            return caps != null && (caps.hasTransport(NetworkCapabilities.TRANSPORT_WIFI)
-                    || caps.hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR)
-                    || caps.hasTransport(NetworkCapabilities.TRANSPORT_ETHERNET));
-        } else {
-            NetworkInfo info = cm.getActiveNetworkInfo();
-            return info != null && info.isConnected();
         }
+        if (!pageJobs.isEmpty()) {
+            JSONArray array = new JSONArray();
+            try {
+                for (OfflineJobQueue.Job job : pageJobs) {
+                    array.put(job.toJson());
+                }
+            } catch (JSONException ignored) {
+            }
+            webView.evaluateJavascript("(function(j){"
+                    + "if(window.onAndroidQueueDrain){window.onAndroidQueueDrain(j);return true;}"
+                    + "return false;"
+                    + "})(" + array + ");", new ValueCallback<String>() {
+                @Override
+                public void onReceiveValue(String handled) {
+                    if (!"true".equals(handled)) {
+                        for (OfflineJobQueue.Job job : pageJobs) {
+                            offlineJobQueue.release(job.id);
+                        }
+                    }
+                }
+            });
+        }
+        showDrainProgress(offlineJobQueue.size());
+        scheduleQueueDrain();
+    }
+
+    /** Shows "X of Y sent" and the rate over the web page while a drain runs; UI thread only. */
+    private void showDrainProgress(int size) {
+        if (drainStartedAt == 0) {
+            return;
+        }
+        if (size == 0) {
+            endDrain();
+            return;
+        }
+        long done = offlineJobQueue.getCompletedCount() - drainBaseCompleted;
+        long elapsed = Math.max(1, SystemClock.elapsedRealtime() - drainStartedAt);
+        queueProgress.setVisibility(View.VISIBLE);
+        queueProgress.setText(getString(R.string.queue_drain_progress, done, done + size, done * 60000L / elapsed));
+    }
+
+    private void endDrain() {
+        if (drainStartedAt == 0) {
+            return;
+        }
+        long done = offlineJobQueue.getCompletedCount() - drainBaseCompleted;
+        long elapsed = Math.max(1, SystemClock.elapsedRealtime() - drainStartedAt);
+        drainStartedAt = 0;
+        queueProgress.setVisibility(View.GONE);
+        if (done > 0) {
+            Log.i(TAG, "Drained " + done + " queued jobs in " + elapsed + " ms");
+            Toast.makeText(this, getString(R.string.queue_drained, done, Math.max(1, elapsed / 1000)),
+                    Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    private boolean hasStoragePermission() {
+        return Build.VERSION.SDK_INT < Build.VERSION_CODES.M
+                || checkSelfPermission(Manifest.permission.WRITE_EXTERNAL_STORAGE) == PackageManager.PERMISSION_GRANTED;
+    }
+
+    private void drainDownloadJob(OfflineJobQueue.Job job) {
+        try {
+            JSONObject payload = new JSONObject(job.payload);
+            enqueueDownload(payload.getString("url"), payload.optString("userAgent", null),
+                    payload.optString("contentDisposition", null), payload.optString("mimeType", null));
+            offlineJobQueue.complete(job.id);
+        } catch (JSONException e) {
+            offlineJobQueue.complete(job.id);
+        } catch (RuntimeException e) {
+            offlineJobQueue.fail(job.id);
+        }
+    }
+
+    private void scheduleQueueDrain() {
+        queueHandler.removeCallbacks(drainQueueRunnable);
+        long next = offlineJobQueue.nextAttemptAt(hasStoragePermission(), webView != null);
+        if (next == Long.MAX_VALUE) {
+            return;
+        }
+        queueHandler.postDelayed(drainQueueRunnable, Math.max(1000L, next - System.currentTimeMillis()));
+    }
+
+    private void updateQueueStatus(final int size) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (size == 0) {
+                    offlineQueue.setVisibility(View.GONE);
+                } else {
+                    offlineQueue.setVisibility(View.VISIBLE);
+                    offlineQueue.setText(getString(R.string.queue_pending, size));
+                }
+                showDrainProgress(size);
+            }
+        });
+    }
+
+    private class WorkQueueInterface {
+        @JavascriptInterface
+        public long enqueue(String type, String payload) {
+            if (type == null || type.length() == 0 || OfflineJobQueue.TYPE_DOWNLOAD.equals(type)) {
+                return -1L;
+            }
+            return offlineJobQueue.enqueue(type, payload);
+        }
+
+        @JavascriptInterface
+        public void complete(long id) {
+            offlineJobQueue.complete(id);
+        }
+
+        @JavascriptInterface
+        public void fail(long id) {
+            offlineJobQueue.fail(id);
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    scheduleQueueDrain();
+                }
+            });
+        }
+
+        @JavascriptInterface
+        public int size() {
+            return offlineJobQueue.size();
+        }
+    }
+
+    private boolean isOnline() {
+        return connectivityMonitor.isOnline();
     }
 
     @Override
@@ -977,6 +2475,7 @@ public class MainActivity extends Activity {
                 if (pendingClearRequest) {
                     performClearExcel();
                 }
+                drainQueue();
             } else {
                 Toast.makeText(this, R.string.download_permission_denied, Toast.LENGTH_SHORT).show();
             }
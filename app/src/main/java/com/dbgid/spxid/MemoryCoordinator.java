@@ -0,0 +1,80 @@
+package com.dbgid.spxid;
+
+import android.content.ComponentCallbacks2;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+final class MemoryCoordinator {
+
+    interface Client {
+        /** Releases what can be rebuilt later and returns an estimate of the bytes freed. */
+        long onTrimMemory(int level);
+    }
+
+    private static final String TAG = "MemoryCoordinator";
+    private static final long PAUSE_BACKGROUND_MS = 30000L;
+
+    private final CopyOnWriteArrayList<Client> clients = new CopyOnWriteArrayList<Client>();
+    private volatile long pausedUntil;
+
+    void register(Client client) {
+        clients.addIfAbsent(client);
+    }
+
+    void unregister(Client client) {
+        clients.remove(client);
+    }
+
+    boolean isBackgroundWorkPaused() {
+        return SystemClock.elapsedRealtime() < pausedUntil;
+    }
+
+    void trim(int level) {
+        if (isCritical(level)) {
+            pausedUntil = SystemClock.elapsedRealtime() + PAUSE_BACKGROUND_MS;
+        } else if (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            pausedUntil = 0L;
+        }
+        long startedAt = SystemClock.elapsedRealtime();
+        long nativeBefore = Debug.getNativeHeapAllocatedSize();
+        long reported = 0L;
+        for (Client client : clients) {
+            try {
+                reported += client.onTrimMemory(level);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Trim failed in " + client, e);
+            }
+        }
+        long nativeFreed = nativeBefore - Debug.getNativeHeapAllocatedSize();
+        Log.i(TAG, "level=" + levelName(level) + " reported=" + reported + " nativeFreed=" + nativeFreed
+                + " paused=" + isBackgroundWorkPaused() + " in " + (SystemClock.elapsedRealtime() - startedAt) + " ms");
+    }
+
+    static boolean isCritical(int level) {
+        return level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL
+                || level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE;
+    }
+
+    private static String levelName(int level) {
+        switch (level) {
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE:
+                return "RUNNING_MODERATE";
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW:
+                return "RUNNING_LOW";
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL:
+                return "RUNNING_CRITICAL";
+            case ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN:
+                return "UI_HIDDEN";
+            case ComponentCallbacks2.TRIM_MEMORY_BACKGROUND:
+                return "BACKGROUND";
+            case ComponentCallbacks2.TRIM_MEMORY_MODERATE:
+                return "MODERATE";
+            case ComponentCallbacks2.TRIM_MEMORY_COMPLETE:
+                return "COMPLETE";
+            default:
+                return Integer.toString(level);
+        }
+    }
+}
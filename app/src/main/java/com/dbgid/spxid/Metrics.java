@@ -0,0 +1,187 @@
+package com.dbgid.spxid;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Counters and fixed-bucket latency histograms. Handles are created once and
+ * kept in fields; recording on them only touches atomics, so it is safe from
+ * any thread and does not allocate.
+ */
+public final class Metrics {
+
+    private static final long[] BUCKET_BOUNDS_MS = {
+            1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000
+    };
+
+    private final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+    private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+    public Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            Counter created = new Counter();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    public Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            Histogram created = new Histogram();
+            histogram = histograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    public String format() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Histogram> entry : new TreeMap<String, Histogram>(histograms).entrySet()) {
+            Histogram histogram = entry.getValue();
+            builder.append(entry.getKey()).append('\n')
+                    .append("  n=").append(histogram.getCount())
+                    .append(" p50=").append(histogram.percentile(0.50))
+                    .append(" p95=").append(histogram.percentile(0.95))
+                    .append(" p99=").append(histogram.percentile(0.99))
+                    .append(" max=").append(histogram.getMax()).append(" ms\n");
+        }
+        for (Map.Entry<String, Counter> entry : new TreeMap<String, Counter>(counters).entrySet()) {
+            builder.append(entry.getKey()).append(" = ").append(entry.getValue().get()).append('\n');
+        }
+        return builder.toString();
+    }
+
+    public JSONObject toJson() throws JSONException {
+        JSONObject counterJson = new JSONObject();
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            counterJson.put(entry.getKey(), entry.getValue().get());
+        }
+        JSONObject histogramJson = new JSONObject();
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            histogramJson.put(entry.getKey(), entry.getValue().toJson());
+        }
+        JSONObject json = new JSONObject();
+        json.put("counters", counterJson);
+        json.put("histograms", histogramJson);
+        return json;
+    }
+
+    public static final class Counter {
+        private final AtomicLong value = new AtomicLong();
+
+        public void increment() {
+            value.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            value.addAndGet(delta);
+        }
+
+        public long get() {
+            return value.get();
+        }
+    }
+
+    public static final class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_BOUNDS_MS.length + 1);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long millis) {
+            if (millis < 0) {
+                millis = 0;
+            }
+            buckets.incrementAndGet(bucketFor(millis));
+            count.incrementAndGet();
+            sum.addAndGet(millis);
+            long current;
+            while (millis > (current = max.get()) && !max.compareAndSet(current, millis)) {
+                // retry
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        /** Estimates a percentile by interpolating inside the bucket that contains it. */
+        public long percentile(double fraction) {
+            long[] snapshot = new long[buckets.length()];
+            long total = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                snapshot[i] = buckets.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(fraction * total);
+            long seen = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                if (snapshot[i] == 0) {
+                    continue;
+                }
+                if (seen + snapshot[i] >= rank) {
+                    long lower = i == 0 ? 0 : BUCKET_BOUNDS_MS[i - 1];
+                    long upper = i < BUCKET_BOUNDS_MS.length ? BUCKET_BOUNDS_MS[i] : Math.max(lower, max.get());
+                    long estimate = lower + (upper - lower) * (rank - seen) / snapshot[i];
+                    return Math.min(estimate, max.get());
+                }
+                seen += snapshot[i];
+            }
+            return max.get();
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            long n = count.get();
+            json.put("count", n);
+            json.put("meanMs", n > 0 ? (double) sum.get() / n : 0d);
+            json.put("maxMs", max.get());
+            json.put("p50Ms", percentile(0.50));
+            json.put("p95Ms", percentile(0.95));
+            json.put("p99Ms", percentile(0.99));
+            JSONArray bucketJson = new JSONArray();
+            for (int i = 0; i < buckets.length(); i++) {
+                JSONObject bucket = new JSONObject();
+                bucket.put("le", i < BUCKET_BOUNDS_MS.length ? BUCKET_BOUNDS_MS[i] : JSONObject.NULL);
+                bucket.put("count", buckets.get(i));
+                bucketJson.put(bucket);
+            }
+            json.put("buckets", bucketJson);
+            return json;
+        }
+
+        private static int bucketFor(long millis) {
+            int low = 0;
+            int high = BUCKET_BOUNDS_MS.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (millis <= BUCKET_BOUNDS_MS[mid]) {
+                    high = mid;
+                } else {
+                    low = mid + 1;
+                }
+            }
+            return low;
+        }
+    }
+}
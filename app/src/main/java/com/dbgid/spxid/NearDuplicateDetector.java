@@ -0,0 +1,221 @@
+package com.dbgid.spxid;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+final class NearDuplicateDetector {
+
+    interface Callback {
+        void onChecked(Result[] results);
+    }
+
+    private static final String TAG = "NearDuplicateDetector";
+    private static final int INDEX_CAPACITY = 50000;
+    private static final int HASH_WIDTH = 9;
+    private static final int HASH_HEIGHT = 8;
+    private static final int DECODE_MIN_EDGE = 64;
+    private static final int PENDING_CAPACITY = 500;
+
+    private final ContentResolver resolver;
+    private final int maxDistance;
+    private final ExecutorService executor;
+    private final PerceptualHashIndex index = new PerceptualHashIndex(INDEX_CAPACITY);
+    // Hashes handed to the page but not yet confirmed as uploaded, by label.
+    // Guarded by index.
+    private final Map<String, Long> pending = new LinkedHashMap<String, Long>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > PENDING_CAPACITY;
+        }
+    };
+
+    NearDuplicateDetector(ContentResolver resolver, int maxDistance) {
+        this.resolver = resolver;
+        this.maxDistance = maxDistance;
+        this.executor = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Hashes every image in parallel, then checks them in order against the
+     * index and the earlier images of the same pick. Images that are not
+     * near-duplicates are held back until confirm() says the page uploaded
+     * them, so a failed upload can be picked again.
+     */
+    void check(final Uri[] uris, final String[] labels, final Callback callback) {
+        final Result[] results = new Result[uris.length];
+        if (uris.length == 0) {
+            callback.onChecked(results);
+            return;
+        }
+        final long startedAt = SystemClock.elapsedRealtime();
+        final AtomicInteger remaining = new AtomicInteger(uris.length);
+        for (int i = 0; i < uris.length; i++) {
+            final int position = i;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Long hash = null;
+                    try {
+                        hash = differenceHash(uris[position]);
+                    } catch (Throwable t) {
+                        Log.w(TAG, "Cannot hash " + uris[position], t);
+                    }
+                    results[position] = new Result(hash);
+                    if (remaining.decrementAndGet() == 0) {
+                        long hashedAt = SystemClock.elapsedRealtime();
+                        try {
+                            long queryNanos = match(results, labels);
+                            Log.i(TAG, "Hashed " + uris.length + " images in " + (hashedAt - startedAt)
+                                    + " ms, queried " + index.size() + " hashes in " + queryNanos / 1000 + " us");
+                        } catch (Throwable t) {
+                            Log.w(TAG, "Cannot query the hash index", t);
+                        }
+                        callback.onChecked(results);
+                    }
+                }
+            });
+        }
+    }
+
+    /** Indexes the image with this label once the page has its result. */
+    void confirm(String label) {
+        if (label == null) {
+            return;
+        }
+        synchronized (index) {
+            Long hash = pending.remove(label);
+            if (hash != null) {
+                index.add(hash, label);
+            }
+        }
+    }
+
+    /** Forgets the older half of the uploaded photos; returns the bytes freed. */
+    long releaseMemory() {
+        synchronized (index) {
+            return index.trim();
+        }
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private long match(Result[] results, String[] labels) {
+        long startedAt = System.nanoTime();
+        synchronized (index) {
+            for (int i = 0; i < results.length; i++) {
+                Result result = results[i];
+                if (result.hash == null) {
+                    continue;
+                }
+                PerceptualHashIndex.Match match = index.nearest(result.hash, maxDistance);
+                if (match != null && !match.label.equals(labels[i])) {
+                    result.duplicateOf = match.label;
+                    result.distance = match.distance;
+                    continue;
+                }
+                // Same pick: only earlier images, and never the photo itself.
+                for (int j = 0; j < i; j++) {
+                    Result earlier = results[j];
+                    if (earlier.hash == null || earlier.isDuplicate() || labels[j].equals(labels[i])) {
+                        continue;
+                    }
+                    int distance = PerceptualHashIndex.distance(result.hash, earlier.hash);
+                    if (distance <= maxDistance && (result.distance < 0 || distance < result.distance)) {
+                        result.duplicateOf = labels[j];
+                        result.distance = distance;
+                    }
+                }
+                boolean indexed = match != null && match.label.equals(labels[i]);
+                if (!result.isDuplicate() && !indexed) {
+                    pending.put(labels[i], result.hash);
+                }
+            }
+        }
+        return System.nanoTime() - startedAt;
+    }
+
+    /** dHash: compares neighbouring pixels of a 9x8 grayscale thumbnail. */
+    private Long differenceHash(Uri uri) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decodeBitmap(uri, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        int sampleSize = 1;
+        int minEdge = Math.min(options.outWidth, options.outHeight);
+        while (minEdge / (sampleSize * 2) >= DECODE_MIN_EDGE) {
+            sampleSize *= 2;
+        }
+        options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        Bitmap decoded = decodeBitmap(uri, options);
+        if (decoded == null) {
+            return null;
+        }
+        Bitmap thumbnail = Bitmap.createScaledBitmap(decoded, HASH_WIDTH, HASH_HEIGHT, true);
+        if (thumbnail != decoded) {
+            decoded.recycle();
+        }
+        int[] pixels = new int[HASH_WIDTH * HASH_HEIGHT];
+        thumbnail.getPixels(pixels, 0, HASH_WIDTH, 0, 0, HASH_WIDTH, HASH_HEIGHT);
+        thumbnail.recycle();
+        long hash = 0L;
+        int bit = 0;
+        for (int y = 0; y < HASH_HEIGHT; y++) {
+            for (int x = 0; x < HASH_WIDTH - 1; x++) {
+                if (luminance(pixels[y * HASH_WIDTH + x]) > luminance(pixels[y * HASH_WIDTH + x + 1])) {
+                    hash |= 1L << bit;
+                }
+                bit++;
+            }
+        }
+        return hash;
+    }
+
+    private static int luminance(int argb) {
+        return (((argb >> 16) & 0xff) * 299 + ((argb >> 8) & 0xff) * 587 + (argb & 0xff) * 114) / 1000;
+    }
+
+    private Bitmap decodeBitmap(Uri uri, BitmapFactory.Options options) {
+        InputStream input = null;
+        try {
+            input = resolver.openInputStream(uri);
+            return input != null ? BitmapFactory.decodeStream(input, null, options) : null;
+        } catch (IOException e) {
+            return null;
+        } catch (SecurityException e) {
+            return null;
+        } finally {
+            GlobalApplication.closeIO(input);
+        }
+    }
+
+    static final class Result {
+        final Long hash;
+        String duplicateOf;
+        int distance = -1;
+
+        Result(Long hash) {
+            this.hash = hash;
+        }
+
+        boolean isDuplicate() {
+            return duplicateOf != null;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.dbgid.spxid;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+
+final class NetworkWarmup {
+
+    private static final String TAG = "NetworkWarmup";
+
+    private NetworkWarmup() {
+    }
+
+    /**
+     * userAgent is the one the WebView reported last run, or null on a
+     * first start; a request with Java's default User-Agent could get a
+     * different page than the WebView would.
+     */
+    static Runnable task(final String url, final String userAgent, final WebAssetCache cache) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                long startedAt = SystemClock.elapsedRealtime();
+                String host = Uri.parse(url).getHost();
+                if (host == null) {
+                    return;
+                }
+                try {
+                    InetAddress.getAllByName(host);
+                } catch (UnknownHostException e) {
+                    Log.w(TAG, "Cannot resolve " + host);
+                    return;
+                }
+                long resolvedAt = SystemClock.elapsedRealtime();
+                boolean prefetched = false;
+                if (cache != null) {
+                    prefetched = cache.prefetch(url, userAgent);
+                }
+                if (!prefetched) {
+                    HttpAssetCache.preconnect(url, userAgent != null
+                            ? Collections.singletonMap("User-Agent", userAgent) : null);
+                }
+                long finishedAt = SystemClock.elapsedRealtime();
+                Log.i(TAG, "dns=" + (resolvedAt - startedAt) + "ms "
+                        + (prefetched ? "prefetch=" : "connect=") + (finishedAt - resolvedAt) + "ms");
+            }
+        };
+    }
+}
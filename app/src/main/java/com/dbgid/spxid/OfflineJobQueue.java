@@ -0,0 +1,353 @@
+package com.dbgid.spxid;
+
+import android.util.Log;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+final class OfflineJobQueue {
+
+    interface Listener {
+        void onQueueChanged(int size);
+    }
+
+    static final String TYPE_DOWNLOAD = "download";
+
+    private static final String TAG = "OfflineJobQueue";
+    private static final long BASE_BACKOFF_MS = 5000L;
+    private static final long MAX_BACKOFF_MS = 30L * 60L * 1000L;
+    // A page job handed to onAndroidQueueDrain that is neither completed nor
+    // failed by then (page navigated away, script error) is failed and retried.
+    static final long IN_FLIGHT_TIMEOUT_MS = 2L * 60L * 1000L;
+    // Failures (including timeouts) before a job is dropped, about 40 minutes
+    // of backoff in total. Releases don't count: the job was never tried.
+    static final int MAX_ATTEMPTS = 10;
+
+    private final File file;
+    private final IoScheduler ioScheduler;
+    private final List<Job> jobs = new ArrayList<Job>();
+    // Job id -> when takeReady handed it out.
+    private final Map<Long, Long> inFlight = new HashMap<Long, Long>();
+    private Listener listener;
+    private long nextId = 1;
+    private long completedCount;
+    private String pendingJson;
+    private boolean writeScheduled;
+
+    OfflineJobQueue(File file, IoScheduler ioScheduler) {
+        this.file = file;
+        this.ioScheduler = ioScheduler;
+        load();
+    }
+
+    void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /** Clears the listener unless another Activity has set its own since. */
+    void removeListener(Listener listener) {
+        if (this.listener == listener) {
+            this.listener = null;
+        }
+    }
+
+    long enqueue(String type, String payload) {
+        long id;
+        synchronized (this) {
+            id = nextId++;
+            jobs.add(new Job(id, type, payload, 0, 0, 0L, System.currentTimeMillis()));
+            save();
+        }
+        notifyChanged();
+        return id;
+    }
+
+    /**
+     * Hands out up to limit due jobs of the accepted types. Jobs of the other
+     * type are left alone, so a missing permission or WebView doesn't burn
+     * their backoff.
+     */
+    List<Job> takeReady(long now, int limit, boolean downloads, boolean pages) {
+        List<Job> ready = new ArrayList<Job>();
+        boolean dropped;
+        synchronized (this) {
+            dropped = expireInFlight(now);
+            for (Job job : jobs) {
+                if (ready.size() >= limit) {
+                    break;
+                }
+                if (accepts(job, downloads, pages) && job.nextAttemptAt <= now && !inFlight.containsKey(job.id)) {
+                    inFlight.put(job.id, now);
+                    ready.add(job);
+                }
+            }
+        }
+        if (dropped) {
+            notifyChanged();
+        }
+        return ready;
+    }
+
+    void complete(long id) {
+        synchronized (this) {
+            inFlight.remove(id);
+            Iterator<Job> iterator = jobs.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().id == id) {
+                    iterator.remove();
+                    completedCount++;
+                    break;
+                }
+            }
+            save();
+        }
+        notifyChanged();
+    }
+
+    /**
+     * Backs the job off, or drops it after MAX_ATTEMPTS. A report for a job
+     * that is not in flight is ignored: it already timed out and was backed
+     * off once.
+     */
+    void fail(long id) {
+        boolean dropped;
+        synchronized (this) {
+            if (inFlight.remove(id) == null) {
+                return;
+            }
+            dropped = backOff(id, System.currentTimeMillis());
+            save();
+        }
+        if (dropped) {
+            notifyChanged();
+        }
+    }
+
+    /**
+     * Returns a job that could not be tried (the page had no drain hook).
+     * It waits with the same exponential backoff as a failure but never
+     * counts towards MAX_ATTEMPTS.
+     */
+    synchronized void release(long id) {
+        if (inFlight.remove(id) == null) {
+            return;
+        }
+        for (Job job : jobs) {
+            if (job.id == id) {
+                job.deferrals++;
+                job.nextAttemptAt = System.currentTimeMillis() + backoffMillis(job.deferrals);
+                break;
+            }
+        }
+        save();
+    }
+
+    synchronized int size() {
+        return jobs.size();
+    }
+
+    synchronized int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    /** Jobs removed by complete() since this queue was opened. */
+    synchronized long getCompletedCount() {
+        return completedCount;
+    }
+
+    /**
+     * When the next job of the accepted types is due, or an in-flight one
+     * times out; MAX_VALUE when neither, so the caller stops polling.
+     */
+    synchronized long nextAttemptAt(boolean downloads, boolean pages) {
+        long next = Long.MAX_VALUE;
+        for (Job job : jobs) {
+            Long takenAt = inFlight.get(job.id);
+            long due;
+            if (takenAt != null) {
+                due = takenAt + IN_FLIGHT_TIMEOUT_MS;
+            } else if (accepts(job, downloads, pages)) {
+                due = job.nextAttemptAt;
+            } else {
+                continue;
+            }
+            if (due < next) {
+                next = due;
+            }
+        }
+        return next;
+    }
+
+    private static boolean accepts(Job job, boolean downloads, boolean pages) {
+        return TYPE_DOWNLOAD.equals(job.type) ? downloads : pages;
+    }
+
+    private static long backoffMillis(int count) {
+        return Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << Math.min(count - 1, 20));
+    }
+
+    private boolean expireInFlight(long now) {
+        boolean expired = false;
+        boolean dropped = false;
+        Iterator<Map.Entry<Long, Long>> iterator = inFlight.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Long, Long> entry = iterator.next();
+            if (entry.getValue() + IN_FLIGHT_TIMEOUT_MS <= now) {
+                iterator.remove();
+                dropped |= backOff(entry.getKey(), now);
+                expired = true;
+            }
+        }
+        if (expired) {
+            save();
+        }
+        return dropped;
+    }
+
+    /** Returns true when the job used up its attempts and was removed. */
+    private boolean backOff(long id, long now) {
+        Iterator<Job> iterator = jobs.iterator();
+        while (iterator.hasNext()) {
+            Job job = iterator.next();
+            if (job.id == id) {
+                job.attempts++;
+                if (job.attempts >= MAX_ATTEMPTS) {
+                    Log.w(TAG, "Dropping " + job.type + " job " + job.id + " after " + job.attempts + " attempts");
+                    iterator.remove();
+                    return true;
+                }
+                job.nextAttemptAt = now + backoffMillis(job.attempts);
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private void notifyChanged() {
+        Listener current = listener;
+        if (current != null) {
+            current.onQueueChanged(size());
+        }
+    }
+
+    private void load() {
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            JSONArray array = new JSONArray(GlobalApplication.toString(new FileInputStream(file)));
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject object = array.getJSONObject(i);
+                Job job = new Job(object.getLong("id"), object.getString("type"), object.optString("payload"),
+                        object.optInt("attempts"), object.optInt("deferrals"), object.optLong("nextAttemptAt"),
+                        object.optLong("createdAt"));
+                jobs.add(job);
+                nextId = Math.max(nextId, job.id + 1);
+            }
+        } catch (IOException e) {
+            jobs.clear();
+        } catch (JSONException e) {
+            jobs.clear();
+        }
+    }
+
+    /**
+     * Snapshots the jobs under the lock and writes them on the IO scheduler.
+     * Saves made while a write is pending only replace the snapshot, so a
+     * drain costs one write per burst rather than one per job.
+     */
+    private void save() {
+        JSONArray array = new JSONArray();
+        try {
+            for (Job job : jobs) {
+                array.put(job.toJson());
+            }
+        } catch (JSONException e) {
+            return;
+        }
+        pendingJson = array.toString();
+        if (writeScheduled) {
+            return;
+        }
+        writeScheduled = true;
+        IoScheduler.Job job = null;
+        try {
+            job = ioScheduler.submit(this, "offlineQueueSave", writeTask, 0L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (job == null) {
+            // The scheduler is full. Writing here is slower but never loses the change.
+            writeTask.run();
+        }
+    }
+
+    private final Runnable writeTask = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                String json;
+                synchronized (OfflineJobQueue.this) {
+                    json = pendingJson;
+                    pendingJson = null;
+                    if (json == null) {
+                        writeScheduled = false;
+                        return;
+                    }
+                }
+                writeFile(json);
+            }
+        }
+    };
+
+    private void writeFile(String json) {
+        try {
+            File temp = new File(file.getPath() + ".tmp");
+            GlobalApplication.write(temp, json.getBytes("UTF-8"));
+            if (!temp.renameTo(file)) {
+                temp.delete();
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    static final class Job {
+        final long id;
+        final String type;
+        final String payload;
+        final long createdAt;
+        int attempts;
+        int deferrals;
+        long nextAttemptAt;
+
+        Job(long id, String type, String payload, int attempts, int deferrals, long nextAttemptAt, long createdAt) {
+            this.id = id;
+            this.type = type;
+            this.payload = payload;
+            this.attempts = attempts;
+            this.deferrals = deferrals;
+            this.nextAttemptAt = nextAttemptAt;
+            this.createdAt = createdAt;
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject object = new JSONObject();
+            object.put("id", id);
+            object.put("type", type);
+            object.put("payload", payload);
+            object.put("attempts", attempts);
+            object.put("deferrals", deferrals);
+            object.put("nextAttemptAt", nextAttemptAt);
+            object.put("createdAt", createdAt);
+            return object;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.dbgid.spxid;
+
+/**
+ * Index of 64-bit perceptual hashes searchable by Hamming distance. Each hash
+ * is filed under its eight bytes; two hashes within distance 7 must share at
+ * least one byte, so a query only compares the entries in eight buckets.
+ * Wider searches fall back to a linear scan. When the index is full the
+ * oldest half is dropped and the buckets are rebuilt.
+ */
+final class PerceptualHashIndex {
+
+    static final int MAX_INDEXED_DISTANCE = 7;
+
+    private static final int BLOCKS = 8;
+    private static final int BUCKETS = 256;
+
+    private final int capacity;
+    private long[] hashes;
+    private String[] labels;
+    private final int[][][] buckets = new int[BLOCKS][BUCKETS][];
+    private final int[][] bucketSizes = new int[BLOCKS][BUCKETS];
+    private int size;
+
+    PerceptualHashIndex(int capacity) {
+        this.capacity = capacity;
+        int initial = Math.min(capacity, 256);
+        hashes = new long[initial];
+        labels = new String[initial];
+    }
+
+    static int distance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+
+    int size() {
+        return size;
+    }
+
+    void add(long hash, String label) {
+        if (size == capacity) {
+            evictOldestHalf();
+        }
+        if (size == hashes.length) {
+            int length = Math.min(capacity, hashes.length * 2);
+            long[] newHashes = new long[length];
+            String[] newLabels = new String[length];
+            System.arraycopy(hashes, 0, newHashes, 0, size);
+            System.arraycopy(labels, 0, newLabels, 0, size);
+            hashes = newHashes;
+            labels = newLabels;
+        }
+        int id = size++;
+        hashes[id] = hash;
+        labels[id] = label;
+        for (int block = 0; block < BLOCKS; block++) {
+            int key = (int) (hash >>> (block * 8)) & 0xff;
+            int[] bucket = buckets[block][key];
+            int count = bucketSizes[block][key];
+            if (bucket == null) {
+                bucket = new int[4];
+                buckets[block][key] = bucket;
+            } else if (count == bucket.length) {
+                int[] grown = new int[count * 2];
+                System.arraycopy(bucket, 0, grown, 0, count);
+                bucket = grown;
+                buckets[block][key] = bucket;
+            }
+            bucket[count] = id;
+            bucketSizes[block][key] = count + 1;
+        }
+    }
+
+    /** Returns the closest entry within maxDistance, or null. */
+    Match nearest(long hash, int maxDistance) {
+        int bestId = -1;
+        int bestDistance = maxDistance + 1;
+        if (maxDistance > MAX_INDEXED_DISTANCE) {
+            for (int id = 0; id < size && bestDistance > 0; id++) {
+                int d = distance(hash, hashes[id]);
+                if (d < bestDistance) {
+                    bestDistance = d;
+                    bestId = id;
+                }
+            }
+        } else {
+            for (int block = 0; block < BLOCKS && bestDistance > 0; block++) {
+                int key = (int) (hash >>> (block * 8)) & 0xff;
+                int[] bucket = buckets[block][key];
+                int count = bucketSizes[block][key];
+                for (int i = 0; i < count; i++) {
+                    int id = bucket[i];
+                    int d = distance(hash, hashes[id]);
+                    if (d < bestDistance) {
+                        bestDistance = d;
+                        bestId = id;
+                    }
+                }
+            }
+        }
+        return bestId != -1 ? new Match(hashes[bestId], labels[bestId], bestDistance) : null;
+    }
+
+    /**
+     * Keeps the newest half and shrinks the arrays to fit. Returns the
+     * estimated bytes freed.
+     */
+    long trim() {
+        long before = footprint();
+        evictOldestHalf();
+        int length = Math.max(Math.min(capacity, 256), size);
+        long[] keptHashes = new long[length];
+        String[] keptLabels = new String[length];
+        System.arraycopy(hashes, 0, keptHashes, 0, size);
+        System.arraycopy(labels, 0, keptLabels, 0, size);
+        hashes = keptHashes;
+        labels = keptLabels;
+        for (int block = 0; block < BLOCKS; block++) {
+            for (int key = 0; key < BUCKETS; key++) {
+                int count = bucketSizes[block][key];
+                int[] bucket = buckets[block][key];
+                if (count == 0) {
+                    buckets[block][key] = null;
+                } else if (bucket.length > count) {
+                    int[] shrunk = new int[count];
+                    System.arraycopy(bucket, 0, shrunk, 0, count);
+                    buckets[block][key] = shrunk;
+                }
+            }
+        }
+        return Math.max(0L, before - footprint());
+    }
+
+    private long footprint() {
+        long bytes = 8L * hashes.length + 4L * labels.length;
+        for (int id = 0; id < size; id++) {
+            bytes += 40L + 2L * labels[id].length();
+        }
+        for (int block = 0; block < BLOCKS; block++) {
+            for (int key = 0; key < BUCKETS; key++) {
+                int[] bucket = buckets[block][key];
+                if (bucket != null) {
+                    bytes += 16L + 4L * bucket.length;
+                }
+            }
+        }
+        return bytes;
+    }
+
+    private void evictOldestHalf() {
+        int keep = size / 2;
+        long[] keptHashes = new long[keep];
+        String[] keptLabels = new String[keep];
+        System.arraycopy(hashes, size - keep, keptHashes, 0, keep);
+        System.arraycopy(labels, size - keep, keptLabels, 0, keep);
+        for (int i = 0; i < size; i++) {
+            labels[i] = null;
+        }
+        for (int block = 0; block < BLOCKS; block++) {
+            for (int key = 0; key < BUCKETS; key++) {
+                bucketSizes[block][key] = 0;
+            }
+        }
+        size = 0;
+        for (int i = 0; i < keep; i++) {
+            add(keptHashes[i], keptLabels[i]);
+        }
+    }
+
+    static final class Match {
+        final long hash;
+        final String label;
+        final int distance;
+
+        Match(long hash, String label, int distance) {
+            this.hash = hash;
+            this.label = label;
+            this.distance = distance;
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package com.dbgid.spxid;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+final class RecognitionCache {
+
+    interface HashCallback {
+        void onHashed(String[] hashes);
+    }
+
+    private static final String TAG = "RecognitionCache";
+    private static final String SUFFIX = ".json";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_RESULT_CHARS = 256 * 1024;
+    private static final long ENTRY_OVERHEAD_BYTES = 96L;
+
+    private final ContentResolver resolver;
+    private final File directory;
+    private final long maxBytes;
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(64, 0.75f, true);
+    private long totalBytes;
+    private boolean loaded;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong hashedImages = new AtomicLong();
+    private final AtomicLong hashedBytes = new AtomicLong();
+    private final AtomicLong hashMillis = new AtomicLong();
+
+    RecognitionCache(ContentResolver resolver, File directory, long maxBytes) {
+        this.resolver = resolver;
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    void hashAll(final Uri[] uris, final HashCallback callback) {
+        final String[] hashes = new String[uris.length];
+        if (uris.length == 0) {
+            callback.onHashed(hashes);
+            return;
+        }
+        final AtomicInteger remaining = new AtomicInteger(uris.length);
+        for (int i = 0; i < uris.length; i++) {
+            final int index = i;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        hashes[index] = hash(uris[index]);
+                    } catch (Throwable t) {
+                        // An unhashed image is just a cache miss; the batch still completes.
+                        Log.w(TAG, "Cannot hash " + uris[index], t);
+                    }
+                    if (remaining.decrementAndGet() == 0) {
+                        callback.onHashed(hashes);
+                    }
+                }
+            });
+        }
+    }
+
+    /** Streams the image through SHA-1 without decoding it. Returns null if it cannot be read. */
+    String hash(Uri uri) {
+        long startedAt = SystemClock.elapsedRealtime();
+        InputStream input = null;
+        try {
+            input = resolver.openInputStream(uri);
+            if (input == null) {
+                return null;
+            }
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long length = 0;
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+                length += read;
+            }
+            hashedImages.incrementAndGet();
+            hashedBytes.addAndGet(length);
+            hashMillis.addAndGet(SystemClock.elapsedRealtime() - startedAt);
+            return toHex(digest.digest());
+        } catch (IOException e) {
+            return null;
+        } catch (SecurityException e) {
+            return null;
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        } finally {
+            GlobalApplication.closeIO(input);
+        }
+    }
+
+    synchronized String get(String hash) {
+        ensureLoaded();
+        if (!isValidHash(hash) || entries.get(hash) == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        File file = new File(directory, hash + SUFFIX);
+        try {
+            String result = GlobalApplication.toString(new FileInputStream(file));
+            file.setLastModified(System.currentTimeMillis());
+            hits.incrementAndGet();
+            return result;
+        } catch (IOException e) {
+            remove(hash);
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    synchronized boolean put(String hash, String result) {
+        if (!isValidHash(hash) || result == null || result.length() > MAX_RESULT_CHARS) {
+            return false;
+        }
+        ensureLoaded();
+        if (!directory.exists() && !directory.mkdirs()) {
+            return false;
+        }
+        File temp = new File(directory, hash + ".tmp");
+        FileOutputStream output = null;
+        try {
+            output = new FileOutputStream(temp);
+            output.write(result.getBytes("UTF-8"));
+            output.close();
+            output = null;
+            File file = new File(directory, hash + SUFFIX);
+            remove(hash);
+            if (!temp.renameTo(file)) {
+                return false;
+            }
+            entries.put(hash, file.length());
+            totalBytes += file.length();
+            trim();
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            GlobalApplication.closeIO(output);
+            temp.delete();
+        }
+    }
+
+    synchronized JSONObject getStats() throws JSONException {
+        long hitCount = hits.get();
+        long lookups = hitCount + misses.get();
+        long images = hashedImages.get();
+        JSONObject stats = new JSONObject();
+        stats.put("hits", hitCount);
+        stats.put("misses", misses.get());
+        stats.put("hitRate", lookups > 0 ? (double) hitCount / lookups : 0d);
+        stats.put("hashedImages", images);
+        stats.put("hashedBytes", hashedBytes.get());
+        stats.put("avgHashMs", images > 0 ? (double) hashMillis.get() / images : 0d);
+        stats.put("entries", entries.size());
+        stats.put("cacheBytes", totalBytes);
+        return stats;
+    }
+
+    /**
+     * Drops the in-memory index of cached results; the next lookup rebuilds
+     * it from the directory. Returns its estimated size.
+     */
+    synchronized long releaseMemory() {
+        if (!loaded) {
+            return 0L;
+        }
+        long bytes = 0L;
+        for (String hash : entries.keySet()) {
+            bytes += ENTRY_OVERHEAD_BYTES + 2L * hash.length();
+        }
+        entries.clear();
+        totalBytes = 0L;
+        loaded = false;
+        return bytes;
+    }
+
+    void logStats() {
+        try {
+            Log.i(TAG, getStats().toString());
+        } catch (JSONException ignored) {
+        }
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void remove(String hash) {
+        Long size = entries.remove(hash);
+        if (size != null) {
+            totalBytes -= size;
+        }
+        new File(directory, hash + SUFFIX).delete();
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            iterator.remove();
+            totalBytes -= eldest.getValue();
+            new File(directory, eldest.getKey() + SUFFIX).delete();
+        }
+    }
+
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long left = a.lastModified();
+                long right = b.lastModified();
+                return left < right ? -1 : (left == right ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(SUFFIX)) {
+                entries.put(name.substring(0, name.length() - SUFFIX.length()), file.length());
+                totalBytes += file.length();
+            } else {
+                file.delete();
+            }
+        }
+        trim();
+    }
+
+    private static boolean isValidHash(String hash) {
+        if (hash == null || hash.length() != 40) {
+            return false;
+        }
+        for (int i = 0; i < hash.length(); i++) {
+            char c = hash.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+            builder.append(Character.forDigit(b & 0xf, 16));
+        }
+        return builder.toString();
+    }
+}
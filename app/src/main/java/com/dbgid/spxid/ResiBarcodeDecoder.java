@@ -0,0 +1,188 @@
+package com.dbgid.spxid;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.MultiFormatReader;
+import com.google.zxing.NotFoundException;
+import com.google.zxing.RGBLuminanceSource;
+import com.google.zxing.Result;
+import com.google.zxing.common.HybridBinarizer;
+import com.google.zxing.multi.GenericMultipleBarcodeReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+final class ResiBarcodeDecoder {
+
+    interface Callback {
+        /** Each tracking number found, mapped to the index of the first image it was read from. */
+        void onDecoded(Map<String, Integer> trackingNumbers);
+    }
+
+    private static final String TAG = "ResiBarcodeDecoder";
+    private static final int MAX_DECODE_EDGE = 2048;
+    /**
+     * Each worker holds a full-resolution ARGB array (up to 16 MB at 2048 px)
+     * besides the bitmap, so more than two in flight risks an OOM on low-end
+     * phones without decoding any faster.
+     */
+    private static final int MAX_THREADS = 2;
+    /** SPX Indonesia resi: "SPXID" followed by the digits printed under the barcode. */
+    private static final Pattern RESI_PATTERN = Pattern.compile("SPXID\\d{8,16}");
+
+    private final ContentResolver resolver;
+    private final ExecutorService executor;
+    private final Map<DecodeHintType, Object> hints;
+
+    ResiBarcodeDecoder(ContentResolver resolver) {
+        this.resolver = resolver;
+        this.executor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors())));
+        this.hints = new EnumMap<DecodeHintType, Object>(DecodeHintType.class);
+        hints.put(DecodeHintType.POSSIBLE_FORMATS, Arrays.asList(
+                BarcodeFormat.CODE_128,
+                BarcodeFormat.CODE_39,
+                BarcodeFormat.QR_CODE,
+                BarcodeFormat.PDF_417,
+                BarcodeFormat.DATA_MATRIX));
+        hints.put(DecodeHintType.TRY_HARDER, Boolean.TRUE);
+    }
+
+    void decodeAll(final Uri[] uris, final Callback callback) {
+        if (uris == null || uris.length == 0) {
+            return;
+        }
+        final long startedAt = SystemClock.elapsedRealtime();
+        final Map<String, Integer> results = new LinkedHashMap<String, Integer>();
+        final AtomicInteger remaining = new AtomicInteger(uris.length);
+        for (int i = 0; i < uris.length; i++) {
+            final int index = i;
+            final Uri uri = uris[i];
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        List<String> decoded = decode(uri);
+                        synchronized (results) {
+                            for (String trackingNumber : decoded) {
+                                Integer previous = results.get(trackingNumber);
+                                if (previous == null || previous > index) {
+                                    results.put(trackingNumber, index);
+                                }
+                            }
+                        }
+                    } catch (Throwable t) {
+                        // One broken photo (OOM, a corrupt JPEG, a revoked Uri) must not
+                        // keep the callback from firing for the rest of the batch.
+                        Log.w(TAG, "Cannot decode " + uri, t);
+                    }
+                    if (remaining.decrementAndGet() == 0) {
+                        long elapsed = Math.max(1, SystemClock.elapsedRealtime() - startedAt);
+                        Log.i(TAG, "Decoded " + uris.length + " images in " + elapsed + " ms ("
+                                + (uris.length * 1000f / elapsed) + " images/s)");
+                        Map<String, Integer> snapshot;
+                        synchronized (results) {
+                            snapshot = new LinkedHashMap<String, Integer>(results);
+                        }
+                        callback.onDecoded(snapshot);
+                    }
+                }
+            });
+        }
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private List<String> decode(Uri uri) {
+        Bitmap bitmap = loadBitmap(uri);
+        if (bitmap == null) {
+            return new ArrayList<String>();
+        }
+        try {
+            int width = bitmap.getWidth();
+            int height = bitmap.getHeight();
+            int[] pixels = new int[width * height];
+            bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+            return decode(pixels, width, height);
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    List<String> decode(int[] argbPixels, int width, int height) {
+        List<String> texts = new ArrayList<String>();
+        BinaryBitmap binary = new BinaryBitmap(new HybridBinarizer(new RGBLuminanceSource(width, height, argbPixels)));
+        MultiFormatReader reader = new MultiFormatReader();
+        reader.setHints(hints);
+        try {
+            Result[] results = new GenericMultipleBarcodeReader(reader).decodeMultiple(binary, hints);
+            for (Result result : results) {
+                String text = toTrackingNumber(result.getText());
+                if (text != null) {
+                    texts.add(text);
+                }
+            }
+        } catch (NotFoundException ignored) {
+        }
+        return texts;
+    }
+
+    /**
+     * Labels also carry QR codes and order barcodes; only the resi itself is
+     * worth storing. Returns null for anything else.
+     */
+    static String toTrackingNumber(String text) {
+        if (text == null) {
+            return null;
+        }
+        String candidate = text.trim().toUpperCase(Locale.US);
+        return RESI_PATTERN.matcher(candidate).matches() ? candidate : null;
+    }
+
+    private Bitmap loadBitmap(Uri uri) {
+        InputStream input = null;
+        try {
+            BitmapFactory.Options bounds = new BitmapFactory.Options();
+            bounds.inJustDecodeBounds = true;
+            input = resolver.openInputStream(uri);
+            BitmapFactory.decodeStream(input, null, bounds);
+            GlobalApplication.closeIO(input);
+            if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+                return null;
+            }
+            int sampleSize = 1;
+            while (Math.max(bounds.outWidth, bounds.outHeight) / sampleSize > MAX_DECODE_EDGE) {
+                sampleSize *= 2;
+            }
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = sampleSize;
+            input = resolver.openInputStream(uri);
+            return BitmapFactory.decodeStream(input, null, options);
+        } catch (IOException e) {
+            return null;
+        } catch (SecurityException e) {
+            return null;
+        } finally {
+            GlobalApplication.closeIO(input);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.dbgid.spxid;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import java.util.ArrayList;
+import java.util.List;
+
+final class ResiDatabase extends SQLiteOpenHelper {
+
+    private static final String DATABASE_NAME = "resi.db";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String TABLE_RESI = "resi";
+    private static final String COLUMN_ID = "_id";
+    private static final String COLUMN_TRACKING_NUMBER = "tracking_number";
+    private static final String COLUMN_STATUS = "status";
+    private static final String COLUMN_SCANNED_AT = "scanned_at";
+    private static final String COLUMN_IMAGE_HASH = "image_hash";
+
+    private static final String[] RECORD_COLUMNS = {
+            COLUMN_TRACKING_NUMBER, COLUMN_STATUS, COLUMN_SCANNED_AT, COLUMN_IMAGE_HASH
+    };
+
+    private static ResiDatabase sInstance;
+
+    static synchronized ResiDatabase getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ResiDatabase(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ResiDatabase(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        db.enableWriteAheadLogging();
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_RESI + " ("
+                + COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + COLUMN_TRACKING_NUMBER + " TEXT NOT NULL, "
+                + COLUMN_STATUS + " TEXT, "
+                + COLUMN_SCANNED_AT + " INTEGER NOT NULL, "
+                + COLUMN_IMAGE_HASH + " TEXT)");
+        db.execSQL("CREATE UNIQUE INDEX idx_resi_tracking_number ON " + TABLE_RESI
+                + " (" + COLUMN_TRACKING_NUMBER + ")");
+        db.execSQL("CREATE INDEX idx_resi_scanned_at ON " + TABLE_RESI
+                + " (" + COLUMN_SCANNED_AT + ")");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    }
+
+    List<Record> upsertAll(List<Record> records) {
+        List<Record> inserted = new ArrayList<Record>();
+        if (records == null || records.isEmpty()) {
+            return inserted;
+        }
+        SQLiteDatabase db = getWritableDatabase();
+        SQLiteStatement insert = db.compileStatement("INSERT OR IGNORE INTO " + TABLE_RESI + " ("
+                + COLUMN_TRACKING_NUMBER + ", " + COLUMN_STATUS + ", " + COLUMN_SCANNED_AT + ", "
+                + COLUMN_IMAGE_HASH + ") VALUES (?, ?, ?, ?)");
+        SQLiteStatement update = db.compileStatement("UPDATE " + TABLE_RESI + " SET "
+                + COLUMN_STATUS + " = COALESCE(?, " + COLUMN_STATUS + "), "
+                + COLUMN_IMAGE_HASH + " = COALESCE(?, " + COLUMN_IMAGE_HASH + ") WHERE "
+                + COLUMN_TRACKING_NUMBER + " = ?");
+        db.beginTransaction();
+        try {
+            for (Record record : records) {
+                if (record.trackingNumber == null || record.trackingNumber.length() == 0) {
+                    continue;
+                }
+                insert.clearBindings();
+                insert.bindString(1, record.trackingNumber);
+                bindNullable(insert, 2, record.status);
+                insert.bindLong(3, record.scannedAt);
+                bindNullable(insert, 4, record.imageHash);
+                if (insert.executeInsert() != -1L) {
+                    inserted.add(record);
+                    continue;
+                }
+                update.clearBindings();
+                bindNullable(update, 1, record.status);
+                bindNullable(update, 2, record.imageHash);
+                update.bindString(3, record.trackingNumber);
+                update.executeUpdateDelete();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+            update.close();
+        }
+        return inserted;
+    }
+
+    Record find(String trackingNumber) {
+        if (trackingNumber == null) {
+            return null;
+        }
+        Cursor cursor = getReadableDatabase().query(TABLE_RESI, RECORD_COLUMNS,
+                COLUMN_TRACKING_NUMBER + " = ?", new String[]{trackingNumber}, null, null, null, "1");
+        try {
+            return cursor.moveToFirst() ? readRecord(cursor) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    List<Record> listSince(long since, int limit) {
+        List<Record> records = new ArrayList<Record>();
+        Cursor cursor = getReadableDatabase().query(TABLE_RESI, RECORD_COLUMNS,
+                COLUMN_SCANNED_AT + " >= ?", new String[]{Long.toString(since)}, null, null,
+                COLUMN_SCANNED_AT + " DESC", limit > 0 ? Integer.toString(limit) : null);
+        try {
+            while (cursor.moveToNext()) {
+                records.add(readRecord(cursor));
+            }
+        } finally {
+            cursor.close();
+        }
+        return records;
+    }
+
+    private static Record readRecord(Cursor cursor) {
+        return new Record(cursor.getString(0), cursor.getString(1), cursor.getLong(2), cursor.getString(3));
+    }
+
+    private static void bindNullable(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    static final class Record {
+        final String trackingNumber;
+        final String status;
+        final long scannedAt;
+        final String imageHash;
+
+        Record(String trackingNumber, String status, long scannedAt, String imageHash) {
+            this.trackingNumber = trackingNumber;
+            this.status = status;
+            this.scannedAt = scannedAt;
+            this.imageHash = imageHash;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package com.dbgid.spxid;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.core.content.FileProvider;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+final class UploadImagePreprocessor {
+
+    interface Callback {
+        void onProcessed(Uri[] uris);
+    }
+
+    private static final String TAG = "UploadImagePreprocessor";
+    private static final long STALE_FILE_AGE_MS = 60L * 60L * 1000L;
+
+    private final Context context;
+    private final ContentResolver resolver;
+    private final File outputDir;
+    private final int maxEdge;
+    private final int quality;
+    private final Bitmap.CompressFormat format;
+    private final ExecutorService executor;
+    private final AtomicLong nextId = new AtomicLong(System.currentTimeMillis());
+
+    UploadImagePreprocessor(Context context, int maxEdge, int quality, Bitmap.CompressFormat format) {
+        this.context = context.getApplicationContext();
+        this.resolver = context.getContentResolver();
+        this.outputDir = new File(context.getCacheDir(), "upload");
+        this.maxEdge = maxEdge;
+        this.quality = quality;
+        this.format = format;
+        this.executor = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors()));
+    }
+
+    void process(final Uri[] uris, final Callback callback) {
+        if (uris == null || uris.length == 0) {
+            callback.onProcessed(uris);
+            return;
+        }
+        final long startedAt = SystemClock.elapsedRealtime();
+        final Uri[] processed = new Uri[uris.length];
+        final AtomicInteger remaining = new AtomicInteger(uris.length);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                deleteStaleFiles();
+            }
+        });
+        for (int i = 0; i < uris.length; i++) {
+            final int index = i;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Uri result = null;
+                    try {
+                        result = processOne(uris[index]);
+                    } catch (Throwable t) {
+                        // Any failure uploads the original, never a missing file.
+                        Log.w(TAG, "Cannot resize " + uris[index], t);
+                    }
+                    processed[index] = result != null ? result : uris[index];
+                    if (remaining.decrementAndGet() == 0) {
+                        Log.i(TAG, "Prepared " + uris.length + " uploads in "
+                                + (SystemClock.elapsedRealtime() - startedAt) + " ms");
+                        callback.onProcessed(processed);
+                    }
+                }
+            });
+        }
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private Uri processOne(Uri uri) {
+        String type = resolver.getType(uri);
+        if (type != null && !type.startsWith("image/")) {
+            return null;
+        }
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        if (!decode(uri, bounds) || bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            return null;
+        }
+        int longestEdge = Math.max(bounds.outWidth, bounds.outHeight);
+        if (longestEdge <= maxEdge && "image/jpeg".equals(bounds.outMimeType)) {
+            return null;
+        }
+        int sampleSize = 1;
+        while (longestEdge / (sampleSize * 2) >= maxEdge) {
+            sampleSize *= 2;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        Bitmap bitmap = decodeBitmap(uri, options);
+        if (bitmap == null) {
+            return null;
+        }
+        Bitmap scaled = scale(bitmap, readRotation(uri));
+        if (scaled != bitmap) {
+            bitmap.recycle();
+        }
+        if (!outputDir.exists() && !outputDir.mkdirs()) {
+            scaled.recycle();
+            return null;
+        }
+        String ext = format == Bitmap.CompressFormat.JPEG ? ".jpg" : ".webp";
+        File outFile = new File(outputDir, "upload_" + nextId.getAndIncrement() + ext);
+        FileOutputStream output = null;
+        try {
+            output = new FileOutputStream(outFile);
+            if (!scaled.compress(format, quality, output)) {
+                outFile.delete();
+                return null;
+            }
+        } catch (IOException e) {
+            outFile.delete();
+            return null;
+        } finally {
+            GlobalApplication.closeIO(output);
+            scaled.recycle();
+        }
+        return FileProvider.getUriForFile(context, context.getPackageName() + ".fileprovider", outFile);
+    }
+
+    private Bitmap scale(Bitmap bitmap, int rotation) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        float ratio = Math.min(1f, (float) maxEdge / Math.max(width, height));
+        if (ratio >= 1f && rotation == 0) {
+            return bitmap;
+        }
+        Matrix matrix = new Matrix();
+        matrix.postScale(ratio, ratio);
+        if (rotation != 0) {
+            matrix.postRotate(rotation);
+        }
+        return Bitmap.createBitmap(bitmap, 0, 0, width, height, matrix, true);
+    }
+
+    private int readRotation(Uri uri) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            return 0;
+        }
+        InputStream input = null;
+        try {
+            input = resolver.openInputStream(uri);
+            if (input == null) {
+                return 0;
+            }
+            int orientation = new ExifInterface(input).getAttributeInt(
+                    ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+            switch (orientation) {
+                case ExifInterface.ORIENTATION_ROTATE_90:
+                    return 90;
+                case ExifInterface.ORIENTATION_ROTATE_180:
+                    return 180;
+                case ExifInterface.ORIENTATION_ROTATE_270:
+                    return 270;
+                default:
+                    return 0;
+            }
+        } catch (IOException e) {
+            return 0;
+        } finally {
+            GlobalApplication.closeIO(input);
+        }
+    }
+
+    private boolean decode(Uri uri, BitmapFactory.Options options) {
+        InputStream input = null;
+        try {
+            input = resolver.openInputStream(uri);
+            BitmapFactory.decodeStream(input, null, options);
+            return true;
+        } catch (IOException e) {
+            return false;
+        } catch (SecurityException e) {
+            return false;
+        } finally {
+            GlobalApplication.closeIO(input);
+        }
+    }
+
+    private Bitmap decodeBitmap(Uri uri, BitmapFactory.Options options) {
+        InputStream input = null;
+        try {
+            input = resolver.openInputStream(uri);
+            return BitmapFactory.decodeStream(input, null, options);
+        } catch (IOException e) {
+            return null;
+        } catch (SecurityException e) {
+            return null;
+        } finally {
+            GlobalApplication.closeIO(input);
+        }
+    }
+
+    private void deleteStaleFiles() {
+        File[] files = outputDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long cutoff = System.currentTimeMillis() - STALE_FILE_AGE_MS;
+        for (File file : files) {
+            if (file.lastModified() < cutoff) {
+                file.delete();
+            }
+        }
+    }
+}
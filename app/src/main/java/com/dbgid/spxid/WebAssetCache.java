@@ -0,0 +1,282 @@
+package com.dbgid.spxid;
+
+import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+import android.webkit.CookieManager;
+import android.webkit.WebResourceResponse;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+final class WebAssetCache {
+
+    private static final String TAG = "WebAssetCache";
+    private static final long REVALIDATE_AFTER_MS = 10L * 60L * 1000L;
+    private static final long PREFETCH_TTL_MS = 60L * 1000L;
+
+    private final HttpAssetCache cache;
+    private final String host;
+    private final MemoryCoordinator memoryCoordinator;
+    private final File prefetchDirectory;
+    private final Map<String, Prefetched> prefetched = new ConcurrentHashMap<String, Prefetched>();
+    private final Set<String> revalidating = new HashSet<String>();
+    private final ExecutorService revalidator = Executors.newSingleThreadExecutor();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong hitBytes = new AtomicLong();
+    private final AtomicLong missBytes = new AtomicLong();
+    private final AtomicLong missMillis = new AtomicLong();
+
+    WebAssetCache(File directory, String host, long maxBytes, MemoryCoordinator memoryCoordinator) {
+        this.cache = new HttpAssetCache(directory, maxBytes);
+        this.prefetchDirectory = new File(directory.getParentFile(), directory.getName() + "-prefetch");
+        this.host = host;
+        this.memoryCoordinator = memoryCoordinator;
+        revalidator.execute(new Runnable() {
+            @Override
+            public void run() {
+                cache.loadIndex();
+                File[] leftovers = prefetchDirectory.listFiles();
+                if (leftovers != null) {
+                    for (File leftover : leftovers) {
+                        leftover.delete();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Called on the WebView's IO thread, so the WebView, and with it the
+     * CookieManager, exists by now.
+     */
+    WebResourceResponse intercept(String method, Uri uri, Map<String, String> requestHeaders) {
+        if (uri == null || (method != null && !"GET".equalsIgnoreCase(method))) {
+            return null;
+        }
+        String url = uri.toString();
+        if (!prefetched.isEmpty()) {
+            WebResourceResponse response = takePrefetched(url);
+            if (response != null) {
+                return response;
+            }
+        }
+        if (!isCacheable(uri)) {
+            return null;
+        }
+        HttpAssetCache.Entry entry = cache.get(url);
+        if (entry != null) {
+            hits.incrementAndGet();
+            hitBytes.addAndGet(entry.body.length());
+            if (System.currentTimeMillis() - entry.getStoredAt() > REVALIDATE_AFTER_MS
+                    && !memoryCoordinator.isBackgroundWorkPaused()) {
+                scheduleRevalidate(url, entry, withCookies(url, requestHeaders));
+            }
+            return open(entry);
+        }
+        if (cache.isUncacheable(url)) {
+            return null;
+        }
+        misses.incrementAndGet();
+        // The WebView adds its cookies below shouldInterceptRequest, so they
+        // are not in requestHeaders; without them a logged-in page would get
+        // (and we would store) the logged-out response.
+        HttpAssetCache.Download download = cache.fetchStreaming(url, withCookies(url, requestHeaders));
+        if (download == null) {
+            return null;
+        }
+        // The WebView reads the body as it arrives; it is stored once read to the end.
+        return respond(download.entry, new MissStream(download, SystemClock.elapsedRealtime()));
+    }
+
+    /**
+     * Fetches the page the WebView is about to load, before the WebView
+     * exists, and serves it once if it is requested within a minute. Runs
+     * from Application.onCreate, so it must not touch CookieManager: that
+     * would load the WebView provider on this thread. The request therefore
+     * carries no cookies, only the User-Agent the WebView last reported, and
+     * the page is only served to a WebView that has no cookies for it
+     * either. Returns false, fetching nothing, while that User-Agent is not
+     * known yet.
+     */
+    boolean prefetch(String url, String userAgent) {
+        if (userAgent == null) {
+            return false;
+        }
+        File target = new File(prefetchDirectory, HttpAssetCache.keyFor(url));
+        HttpAssetCache.Entry entry = cache.fetchOnce(url,
+                Collections.singletonMap("User-Agent", userAgent), target);
+        if (entry == null) {
+            return false;
+        }
+        Prefetched previous = prefetched.put(url, new Prefetched(entry, SystemClock.elapsedRealtime()));
+        if (previous != null && !previous.entry.body.equals(target)) {
+            previous.entry.body.delete();
+        }
+        return true;
+    }
+
+    private WebResourceResponse takePrefetched(String url) {
+        Prefetched page = prefetched.remove(url);
+        if (page == null) {
+            return null;
+        }
+        try {
+            if (SystemClock.elapsedRealtime() - page.fetchedAt >= PREFETCH_TTL_MS) {
+                return null;
+            }
+            String cookie = CookieManager.getInstance().getCookie(url);
+            if (cookie != null && cookie.length() > 0) {
+                // Fetched logged out; this session would get a different page.
+                return null;
+            }
+            Log.i(TAG, "Serving prefetched " + url);
+            return open(page.entry);
+        } catch (RuntimeException e) {
+            return null;
+        } finally {
+            // An open stream keeps reading after the file is unlinked.
+            page.entry.body.delete();
+        }
+    }
+
+    String getStats() {
+        long hitCount = hits.get();
+        long missCount = misses.get();
+        long fetchedBytes = missBytes.get();
+        long savedMillis = fetchedBytes > 0 ? hitBytes.get() * missMillis.get() / fetchedBytes : 0;
+        return "hits=" + hitCount + " misses=" + missCount + " servedBytes=" + hitBytes.get()
+                + " estimatedSavedMs=" + savedMillis + " cacheBytes=" + cache.getTotalBytes();
+    }
+
+    void logStats() {
+        Log.i(TAG, getStats());
+    }
+
+    void shutdown() {
+        revalidator.shutdownNow();
+    }
+
+    private boolean isCacheable(Uri uri) {
+        String scheme = uri.getScheme();
+        if (!"https".equalsIgnoreCase(scheme) && !"http".equalsIgnoreCase(scheme)) {
+            return false;
+        }
+        if (host == null || !host.equalsIgnoreCase(uri.getHost())) {
+            return false;
+        }
+        return HttpAssetCache.hasCacheableExtension(uri.getPath());
+    }
+
+    private static Map<String, String> withCookies(String url, Map<String, String> requestHeaders) {
+        Map<String, String> headers = requestHeaders != null
+                ? new HashMap<String, String>(requestHeaders) : new HashMap<String, String>();
+        try {
+            String cookie = CookieManager.getInstance().getCookie(url);
+            if (cookie != null && cookie.length() > 0) {
+                headers.put("Cookie", cookie);
+            }
+        } catch (RuntimeException ignored) {
+        }
+        return headers;
+    }
+
+    private static WebResourceResponse open(HttpAssetCache.Entry entry) {
+        InputStream body;
+        try {
+            body = new FileInputStream(entry.body);
+        } catch (IOException e) {
+            return null;
+        }
+        return respond(entry, body);
+    }
+
+    private static WebResourceResponse respond(HttpAssetCache.Entry entry, InputStream body) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            return new WebResourceResponse(entry.getMimeType(), entry.getEncoding(), 200, "OK",
+                    entry.getHeaders(), body);
+        }
+        return new WebResourceResponse(entry.getMimeType(), entry.getEncoding(), body);
+    }
+
+    private void scheduleRevalidate(final String url, final HttpAssetCache.Entry entry,
+                                    final Map<String, String> requestHeaders) {
+        synchronized (revalidating) {
+            if (!revalidating.add(url)) {
+                return;
+            }
+        }
+        revalidator.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    cache.fetch(url, entry, requestHeaders);
+                } finally {
+                    synchronized (revalidating) {
+                        revalidating.remove(url);
+                    }
+                }
+            }
+        });
+    }
+
+    /** Counts a miss's bytes and time to EOF for getStats(). */
+    private final class MissStream extends FilterInputStream {
+        private final long startedAt;
+        private long bytes;
+        private boolean counted;
+
+        MissStream(InputStream in, long startedAt) {
+            super(in);
+            this.startedAt = startedAt;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+            count(value == -1 ? -1 : 1);
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            count(read);
+            return read;
+        }
+
+        private void count(int read) {
+            if (read > 0) {
+                bytes += read;
+            } else if (read == -1 && !counted) {
+                counted = true;
+                missBytes.addAndGet(bytes);
+                missMillis.addAndGet(SystemClock.elapsedRealtime() - startedAt);
+            }
+        }
+    }
+
+    private static final class Prefetched {
+        final HttpAssetCache.Entry entry;
+        final long fetchedAt;
+
+        Prefetched(HttpAssetCache.Entry entry, long fetchedAt) {
+            this.entry = entry;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.dbgid.spxid;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The saveBase64 bridge path: the page sends a whole file as one base64
+ * string. size is the decoded payload in bytes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class Base64Benchmark {
+
+    @Param({"10240", "1048576", "10485760", "52428800"})
+    public int size;
+
+    private File dir;
+    private File target;
+    private String encoded;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = BenchmarkFiles.createTempDir("base64");
+        target = new File(dir, "target.bin");
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        encoded = Base64.getEncoder().encodeToString(data);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkFiles.deleteTree(dir);
+    }
+
+    @Benchmark
+    public byte[] decode() {
+        return Base64Decoder.decode(encoded);
+    }
+
+    /** What saveBase64File does today: decode the whole payload, then write it. */
+    @Benchmark
+    public void decodeThenWrite() throws IOException {
+        FileIo.write(target, Base64Decoder.decode(encoded));
+    }
+
+    /** Decoding straight into the file without holding the decoded payload. */
+    @Benchmark
+    public long decodeToFile() throws IOException {
+        FileOutputStream output = new FileOutputStream(target);
+        try {
+            return Base64Decoder.decodeTo(encoded, output);
+        } finally {
+            output.close();
+        }
+    }
+}
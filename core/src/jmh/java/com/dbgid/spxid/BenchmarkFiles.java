@@ -0,0 +1,28 @@
+package com.dbgid.spxid;
+
+import java.io.File;
+import java.io.IOException;
+
+final class BenchmarkFiles {
+
+    private BenchmarkFiles() {
+    }
+
+    static File createTempDir(String prefix) throws IOException {
+        File dir = File.createTempFile("spxid-" + prefix, "");
+        if (!dir.delete() || !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        return dir;
+    }
+
+    static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+}
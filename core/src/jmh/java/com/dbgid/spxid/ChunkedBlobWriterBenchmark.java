@@ -0,0 +1,88 @@
+package com.dbgid.spxid;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The blob download bridge on the app side: the same file arriving as
+ * base64 strings through AndroidBlobDownloader.appendChunk, or as
+ * ArrayBuffers through the WebMessagePort. Chunks are BLOB_CHUNK_SIZE, as
+ * in MainActivity. What the page spends on readAsDataURL is not measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ChunkedBlobWriterBenchmark {
+
+    private static final int CHUNK_SIZE = 384 * 1024;
+
+    @Param({"1048576", "10485760", "52428800"})
+    public int size;
+
+    private File dir;
+    private ChunkedBlobWriter writer;
+    private final List<String> base64Chunks = new ArrayList<String>();
+    private final List<byte[]> binaryChunks = new ArrayList<byte[]>();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = BenchmarkFiles.createTempDir("blob");
+        final File target = new File(dir, "target.bin");
+        writer = new ChunkedBlobWriter(null, new FileAllocator() {
+            @Override
+            public File allocate(String fileName) {
+                return target;
+            }
+
+            @Override
+            public void release(File file) {
+            }
+        });
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        for (int offset = 0; offset < size; offset += CHUNK_SIZE) {
+            byte[] chunk = Arrays.copyOfRange(data, offset, Math.min(size, offset + CHUNK_SIZE));
+            binaryChunks.add(chunk);
+            base64Chunks.add(Base64.getEncoder().encodeToString(chunk));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkFiles.deleteTree(dir);
+    }
+
+    @Benchmark
+    public ChunkedBlobWriter.Session base64() throws IOException {
+        String handle = writer.open("blob.bin", null, size);
+        for (String chunk : base64Chunks) {
+            writer.append(handle, chunk);
+        }
+        return writer.commit(handle);
+    }
+
+    @Benchmark
+    public ChunkedBlobWriter.Session binary() throws IOException {
+        String handle = writer.open("blob.bin", null, size);
+        for (byte[] chunk : binaryChunks) {
+            writer.append(handle, chunk);
+        }
+        return writer.commit(handle);
+    }
+}
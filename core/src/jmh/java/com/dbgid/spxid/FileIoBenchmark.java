@@ -0,0 +1,106 @@
+package com.dbgid.spxid;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/** Export path file operations over payloads from a small label photo to a large workbook. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FileIoBenchmark {
+
+    @Param({"10240", "1048576", "10485760", "52428800"})
+    public int size;
+
+    private File dir;
+    private File source;
+    private File target;
+    private byte[] data;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = BenchmarkFiles.createTempDir("fileio");
+        data = new byte[size];
+        new Random(size).nextBytes(data);
+        source = new File(dir, "source.bin");
+        target = new File(dir, "target.bin");
+        FileIo.write(source, data);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkFiles.deleteTree(dir);
+    }
+
+    /** GlobalApplication.write(File, byte[]). */
+    @Benchmark
+    public void write() throws IOException {
+        FileIo.write(target, data);
+    }
+
+    /** The 8 KB loop GlobalApplication.write used before FileIo; the yardstick for write and copyStream. */
+    @Benchmark
+    public void writeLegacy() throws IOException {
+        FileOutputStream output = new FileOutputStream(target);
+        try {
+            legacyCopy(new ByteArrayInputStream(data), output);
+        } finally {
+            output.close();
+        }
+    }
+
+    /** MainActivity.copyFile when the target is missing or stale. */
+    @Benchmark
+    public long copyFile() throws IOException {
+        return FileIo.copyFile(source, target);
+    }
+
+    /** copyFile the way it was done before FileIo. */
+    @Benchmark
+    public void copyFileLegacy() throws IOException {
+        FileInputStream input = new FileInputStream(source);
+        FileOutputStream output = new FileOutputStream(target);
+        try {
+            legacyCopy(input, output);
+        } finally {
+            input.close();
+            output.close();
+        }
+    }
+
+    /** GlobalApplication.write(InputStream, OutputStream) from a non-file stream, as with content URIs. */
+    @Benchmark
+    public long copyStream() throws IOException {
+        FileOutputStream output = new FileOutputStream(target);
+        try {
+            return FileIo.copy(new ByteArrayInputStream(data), output);
+        } finally {
+            output.close();
+        }
+    }
+
+    private static void legacyCopy(InputStream input, OutputStream output) throws IOException {
+        byte[] buf = new byte[1024 * 8];
+        int len;
+        while ((len = input.read(buf)) != -1) {
+            output.write(buf, 0, len);
+        }
+    }
+}
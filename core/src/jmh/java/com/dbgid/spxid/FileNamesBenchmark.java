@@ -0,0 +1,81 @@
+package com.dbgid.spxid;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/** Name handling that runs for every blob download and export. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FileNamesBenchmark {
+
+    private static final String CLEAN_NAME = "Resi SPX 2024-05-01 12.30.45.xlsx";
+    private static final String DIRTY_NAME = "  Resi SPX 2024/05/01 12:30:45 <batch|2>  ";
+    private static final String BLOB_URL = "blob:https://spx.co.id/3f0b9c2e-6a1d-4e7b-9f3a-2c5d8e1b7a40";
+    private static final String QUOTED_NAME = "Kurir's \"resi\"\r\nC:\\export\\resi.xlsx";
+
+    @Benchmark
+    public String sanitizeClean() {
+        return FileNames.sanitize(CLEAN_NAME);
+    }
+
+    @Benchmark
+    public String ensureDirty() {
+        return FileNames.ensure(DIRTY_NAME, "xlsx");
+    }
+
+    @Benchmark
+    public String escapeJsUrl() {
+        return FileNames.escapeJs(BLOB_URL);
+    }
+
+    @Benchmark
+    public String escapeJsQuoted() {
+        return FileNames.escapeJs(QUOTED_NAME);
+    }
+
+    /** makeUnique outside the indexed download dir, with n "resi(k).xlsx" already present. */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public File makeUnique(Collisions collisions) {
+        return FileNames.makeUnique(collisions.file);
+    }
+
+    @State(Scope.Benchmark)
+    public static class Collisions {
+
+        @Param({"0", "10", "100"})
+        public int existing;
+
+        private File dir;
+        private File file;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            dir = BenchmarkFiles.createTempDir("names");
+            file = new File(dir, "resi.xlsx");
+            if (existing > 0) {
+                FileIo.write(file, new byte[0]);
+                for (int i = 1; i < existing; i++) {
+                    FileIo.write(new File(dir, "resi(" + i + ").xlsx"), new byte[0]);
+                }
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            BenchmarkFiles.deleteTree(dir);
+        }
+    }
+}
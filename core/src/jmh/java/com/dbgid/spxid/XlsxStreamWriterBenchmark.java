@@ -0,0 +1,69 @@
+package com.dbgid.spxid;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The appendXlsxRows bridge path: a whole resi export streamed into a .part
+ * file, the way MainActivity drives the writer. rows is the sheet length.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class XlsxStreamWriterBenchmark {
+
+    @Param({"10000", "100000"})
+    public int rows;
+
+    private File dir;
+    private File target;
+    private String[][] sheet;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = BenchmarkFiles.createTempDir("xlsx");
+        target = new File(dir, "resi.xlsx.part");
+        sheet = new String[rows][];
+        for (int i = 0; i < rows; i++) {
+            sheet[i] = new String[]{
+                    Integer.toString(i + 1),
+                    "SPXID" + (40000000000L + i * 7919L),
+                    i % 10 == 0 ? "Gagal <alamat> & dikembalikan" : "Terkirim",
+                    "2024-05-" + (1 + i % 28) + " 12:30:45",
+                    "Kurir " + (i % 37),
+                    i % 5 == 0 ? null : "Jl. Merdeka No. " + i + ", Jakarta"
+            };
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkFiles.deleteTree(dir);
+    }
+
+    @Benchmark
+    public long writeToFile() throws IOException {
+        XlsxStreamWriter writer = new XlsxStreamWriter(new FileOutputStream(target), "Resi SPX");
+        try {
+            writer.writeRow(new String[]{"No", "Resi", "Status", "Tanggal", "Kurir", "Alamat"});
+            for (String[] row : sheet) {
+                writer.writeRow(row);
+            }
+        } finally {
+            writer.close();
+        }
+        return target.length();
+    }
+}
@@ -0,0 +1,158 @@
+package com.dbgid.spxid;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Standard-alphabet base64 decoder with the same leniency as
+ * android.util.Base64.DEFAULT: characters outside the alphabet (line breaks,
+ * spaces) are skipped, padding is optional, and anything after the padding
+ * or a dangling sixth bit is rejected with IllegalArgumentException. A
+ * data-URL prefix is not skipped, since "data" is valid base64; the injected
+ * script strips it before calling the bridge. Kept in plain Java so the
+ * export path can be benchmarked off-device.
+ */
+public final class Base64Decoder {
+
+    private static final int SKIP = -1;
+    private static final int EQUALS = -2;
+    private static final int ERROR = 6;
+    private static final int CHUNK_CHARS = 64 * 1024;
+    private static final int[] DECODE = new int[256];
+
+    static {
+        Arrays.fill(DECODE, SKIP);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            DECODE[alphabet.charAt(i)] = i;
+        }
+        DECODE['='] = EQUALS;
+    }
+
+    private int state;
+    private int value;
+
+    private Base64Decoder() {
+    }
+
+    public static byte[] decode(String input) {
+        byte[] output = new byte[input.length() * 3 / 4 + 3];
+        Base64Decoder decoder = new Base64Decoder();
+        int length = decoder.process(input, 0, input.length(), output, 0);
+        length = decoder.finish(output, length);
+        if (length < 0) {
+            throw new IllegalArgumentException("bad base-64");
+        }
+        return length == output.length ? output : Arrays.copyOf(output, length);
+    }
+
+    /**
+     * Decodes straight into the stream in 48 KB blocks instead of
+     * materialising the whole payload. Returns the number of bytes written.
+     * On bad input some bytes may already have been written.
+     */
+    public static long decodeTo(String input, OutputStream output) throws IOException {
+        byte[] buffer = new byte[CHUNK_CHARS * 3 / 4 + 3];
+        Base64Decoder decoder = new Base64Decoder();
+        int length = input.length();
+        long written = 0;
+        for (int start = 0; start < length; start += CHUNK_CHARS) {
+            int count = decoder.process(input, start, Math.min(length, start + CHUNK_CHARS), buffer, 0);
+            if (count < 0) {
+                throw new IllegalArgumentException("bad base-64");
+            }
+            output.write(buffer, 0, count);
+            written += count;
+        }
+        int count = decoder.finish(buffer, 0);
+        if (count < 0) {
+            throw new IllegalArgumentException("bad base-64");
+        }
+        output.write(buffer, 0, count);
+        return written + count;
+    }
+
+    /** Returns the new output position, or -1 once the input is known to be invalid. */
+    private int process(String input, int from, int to, byte[] output, int op) {
+        int state = this.state;
+        int value = this.value;
+        for (int i = from; i < to && state != ERROR; i++) {
+            char c = input.charAt(i);
+            int d = c < 256 ? DECODE[c] : SKIP;
+            switch (state) {
+                case 0:
+                case 1:
+                    if (d >= 0) {
+                        value = (value << 6) | d;
+                        state++;
+                    } else if (d != SKIP) {
+                        state = ERROR;
+                    }
+                    break;
+                case 2:
+                    if (d >= 0) {
+                        value = (value << 6) | d;
+                        state++;
+                    } else if (d == EQUALS) {
+                        output[op++] = (byte) (value >> 4);
+                        state = 4;
+                    } else if (d != SKIP) {
+                        state = ERROR;
+                    }
+                    break;
+                case 3:
+                    if (d >= 0) {
+                        value = (value << 6) | d;
+                        output[op++] = (byte) (value >> 16);
+                        output[op++] = (byte) (value >> 8);
+                        output[op++] = (byte) value;
+                        value = 0;
+                        state = 0;
+                    } else if (d == EQUALS) {
+                        output[op++] = (byte) (value >> 10);
+                        output[op++] = (byte) (value >> 2);
+                        state = 5;
+                    } else if (d != SKIP) {
+                        state = ERROR;
+                    }
+                    break;
+                case 4:
+                    if (d == EQUALS) {
+                        state = 5;
+                    } else if (d != SKIP) {
+                        state = ERROR;
+                    }
+                    break;
+                default:
+                    if (d != SKIP) {
+                        state = ERROR;
+                    }
+                    break;
+            }
+        }
+        this.state = state;
+        this.value = value;
+        return state == ERROR ? -1 : op;
+    }
+
+    private int finish(byte[] output, int op) {
+        if (op < 0) {
+            return -1;
+        }
+        switch (state) {
+            case 0:
+            case 5:
+                return op;
+            case 2:
+                output[op++] = (byte) (value >> 4);
+                return op;
+            case 3:
+                output[op++] = (byte) (value >> 10);
+                output[op++] = (byte) (value >> 2);
+                return op;
+            default:
+                return -1;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.dbgid.spxid;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Background half of the saveBase64 bridge call: decodes the payload the page
+ * sent straight into a freshly allocated file and reports back. Only one
+ * decode block is held besides the payload string itself. A cancelled job
+ * reports nothing and leaves no file behind.
+ */
+public final class Base64SaveTask implements Runnable {
+
+    public interface Callback {
+        void onSaved(File file, String mimeType, long bytes, long decodeMillis, long writeMillis);
+
+        void onFailed(String fileName);
+    }
+
+    private final String base64Data;
+    private final String fileName;
+    private final String mimeType;
+    private final FileAllocator allocator;
+    private final Callback callback;
+
+    public Base64SaveTask(String base64Data, String fileName, String mimeType, FileAllocator allocator,
+            Callback callback) {
+        this.base64Data = base64Data;
+        this.fileName = fileName;
+        this.mimeType = mimeType;
+        this.allocator = allocator;
+        this.callback = callback;
+    }
+
+    @Override
+    public void run() {
+        if (Thread.currentThread().isInterrupted()) {
+            return;
+        }
+        File outFile = null;
+        long bytes;
+        long totalNanos;
+        TimedOutputStream output = null;
+        try {
+            outFile = allocator.allocate(fileName);
+            long startedAt = System.nanoTime();
+            output = new TimedOutputStream(new FileOutputStream(outFile));
+            bytes = Base64Decoder.decodeTo(base64Data, output);
+            output.close();
+            totalNanos = System.nanoTime() - startedAt;
+        } catch (Throwable t) {
+            // Bad base64, a full disk or an OutOfMemoryError. The job runs
+            // inside a FutureTask, so whatever escapes here would be
+            // swallowed and the page would never hear back.
+            FileIo.closeQuietly(output);
+            discard(outFile);
+            callback.onFailed(fileName);
+            return;
+        }
+        if (Thread.currentThread().isInterrupted()) {
+            discard(outFile);
+            return;
+        }
+        long writeMillis = output.writeNanos / 1000000L;
+        long decodeMillis = Math.max(0L, totalNanos / 1000000L - writeMillis);
+        callback.onSaved(outFile, mimeType, bytes, decodeMillis, writeMillis);
+    }
+
+    private void discard(File outFile) {
+        if (outFile != null) {
+            outFile.delete();
+            allocator.release(outFile);
+        }
+    }
+
+    /** Decoding and writing now interleave; this splits the time between them. */
+    private static final class TimedOutputStream extends FilterOutputStream {
+        long writeNanos;
+
+        TimedOutputStream(OutputStream output) {
+            super(output);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            long startedAt = System.nanoTime();
+            out.write(buffer, offset, length);
+            writeNanos += System.nanoTime() - startedAt;
+        }
+
+        @Override
+        public void close() throws IOException {
+            long startedAt = System.nanoTime();
+            out.close();
+            writeNanos += System.nanoTime() - startedAt;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.dbgid.spxid;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+public final class ChunkedBlobWriter {
+
+    public interface ProgressListener {
+        void onProgress(String handle, long written, long total);
+    }
+
+    private static final String PART_SUFFIX = ".part";
+
+    private final Map<String, Session> sessions = new HashMap<String, Session>();
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final ProgressListener listener;
+    private final FileAllocator allocator;
+
+    public ChunkedBlobWriter(ProgressListener listener, FileAllocator allocator) {
+        this.listener = listener;
+        this.allocator = allocator;
+    }
+
+    /** Allocates the target for fileName and starts writing its .part file. */
+    public String open(String fileName, String mimeType, long totalSize) throws IOException {
+        File target = allocator.allocate(fileName);
+        File partFile = new File(target.getPath() + PART_SUFFIX);
+        FileOutputStream output;
+        try {
+            output = new FileOutputStream(partFile);
+        } catch (IOException e) {
+            allocator.release(target);
+            throw e;
+        }
+        Session session = new Session(target, partFile, mimeType, totalSize, output);
+        String handle = "blob-" + nextId.getAndIncrement();
+        synchronized (sessions) {
+            sessions.put(handle, session);
+        }
+        return handle;
+    }
+
+    public boolean append(String handle, String base64Chunk) {
+        Session session = get(handle);
+        if (session == null) {
+            return false;
+        }
+        if (base64Chunk == null || base64Chunk.length() == 0) {
+            return true;
+        }
+        byte[] data;
+        try {
+            data = Base64Decoder.decode(base64Chunk);
+        } catch (IllegalArgumentException e) {
+            abort(handle);
+            return false;
+        }
+        return write(handle, session, data);
+    }
+
+    public boolean append(String handle, byte[] data) {
+        Session session = get(handle);
+        if (session == null || data == null) {
+            return false;
+        }
+        return write(handle, session, data);
+    }
+
+    private boolean write(String handle, Session session, byte[] data) {
+        try {
+            session.output.write(data);
+        } catch (IOException e) {
+            abort(handle);
+            return false;
+        }
+        session.written += data.length;
+        session.lastWriteAt = System.nanoTime();
+        if (listener != null) {
+            listener.onProgress(handle, session.written, session.totalSize);
+        }
+        return true;
+    }
+
+    public Session commit(String handle) {
+        Session session = remove(handle);
+        if (session == null) {
+            return null;
+        }
+        try {
+            session.output.flush();
+            session.output.close();
+        } catch (IOException e) {
+            discard(session);
+            return null;
+        }
+        if (session.totalSize >= 0 && session.written != session.totalSize) {
+            discard(session);
+            return null;
+        }
+        if (!session.partFile.renameTo(session.target)) {
+            discard(session);
+            return null;
+        }
+        return session;
+    }
+
+    public void abort(String handle) {
+        Session session = remove(handle);
+        if (session != null) {
+            discard(session);
+        }
+    }
+
+    public void abortAll() {
+        List<Session> pending;
+        synchronized (sessions) {
+            pending = new ArrayList<Session>(sessions.values());
+            sessions.clear();
+        }
+        for (Session session : pending) {
+            discard(session);
+        }
+    }
+
+    /**
+     * Aborts the sessions that have not received a chunk for idleMillis and
+     * returns how many are still open.
+     */
+    public int abortIdle(long idleMillis) {
+        long cutoff = System.nanoTime() - idleMillis * 1000000L;
+        List<Session> idle = new ArrayList<Session>();
+        int open;
+        synchronized (sessions) {
+            Iterator<Session> iterator = sessions.values().iterator();
+            while (iterator.hasNext()) {
+                Session session = iterator.next();
+                if (session.lastWriteAt - cutoff < 0) {
+                    iterator.remove();
+                    idle.add(session);
+                }
+            }
+            open = sessions.size();
+        }
+        for (Session session : idle) {
+            discard(session);
+        }
+        return open;
+    }
+
+    private void discard(Session session) {
+        FileIo.closeQuietly(session.output);
+        session.partFile.delete();
+        allocator.release(session.target);
+    }
+
+    private Session get(String handle) {
+        if (handle == null) {
+            return null;
+        }
+        synchronized (sessions) {
+            return sessions.get(handle);
+        }
+    }
+
+    private Session remove(String handle) {
+        if (handle == null) {
+            return null;
+        }
+        synchronized (sessions) {
+            return sessions.remove(handle);
+        }
+    }
+
+    public static final class Session {
+        public final File target;
+        public final String mimeType;
+        public final long totalSize;
+        final File partFile;
+        final FileOutputStream output;
+        final long startedAt = System.nanoTime();
+        volatile long written;
+        volatile long lastWriteAt = startedAt;
+
+        Session(File target, File partFile, String mimeType, long totalSize, FileOutputStream output) {
+            this.target = target;
+            this.partFile = partFile;
+            this.mimeType = mimeType;
+            this.totalSize = totalSize;
+            this.output = output;
+        }
+
+        public long getWritten() {
+            return written;
+        }
+
+        public long getElapsedMillis() {
+            return (System.nanoTime() - startedAt) / 1000000L;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package com.dbgid.spxid;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory index of the export directory: hands out unique file names
+ * without probing name(1), name(2), ... on disk, and lists past exports.
+ * A Watcher keeps it current; the app feeds it from a FileObserver, a test
+ * or the soak can feed it directly, or pass null and rely on the disk
+ * check in allocate().
+ */
+public final class ExportDirectoryIndex implements FileAllocator {
+
+    /** Reports changes in the directory through the index's on* methods. */
+    public interface Watcher {
+        void start(File dir, ExportDirectoryIndex index);
+
+        void stop();
+    }
+
+    public static final int SORT_NEWEST = 0;
+    public static final int SORT_NAME = 1;
+
+    private static final String PART_SUFFIX = ".part";
+    private static final long ENTRY_OVERHEAD_BYTES = 96L;
+
+    private final File dir;
+    private final Watcher watcher;
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private final Map<String, Integer> nextSuffix = new HashMap<String, Integer>();
+    private boolean watching;
+    private boolean loaded;
+
+    public ExportDirectoryIndex(File dir, Watcher watcher) {
+        this.dir = dir;
+        this.watcher = watcher;
+    }
+
+    /**
+     * Reserves a name that neither the index nor the disk knows. The disk is
+     * checked too because the observer misses writes from other processes
+     * and on some FUSE/sdcardfs mounts.
+     */
+    @Override
+    public synchronized File allocate(String fileName) throws IOException {
+        ensureLoaded();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        if (isFree(fileName)) {
+            reserve(fileName);
+            return new File(dir, fileName);
+        }
+        String base = fileName;
+        String ext = "";
+        int dot = fileName.lastIndexOf('.');
+        if (dot > 0) {
+            base = fileName.substring(0, dot);
+            ext = fileName.substring(dot);
+        }
+        String key = base + ext;
+        Integer next = nextSuffix.get(key);
+        int index = next != null ? next : 1;
+        String candidate;
+        do {
+            candidate = base + "(" + index + ")" + ext;
+            index++;
+        } while (!isFree(candidate));
+        nextSuffix.put(key, index);
+        reserve(candidate);
+        return new File(dir, candidate);
+    }
+
+    /** Gives back a name from allocate() whose save failed or was aborted. */
+    @Override
+    public synchronized void release(File file) {
+        Entry entry = entries.get(file.getName());
+        if (entry != null && entry.lastModified == 0L) {
+            entries.remove(file.getName());
+        }
+    }
+
+    public synchronized List<Entry> list(int sortOrder) {
+        ensureLoaded();
+        List<Entry> result = new ArrayList<Entry>(entries.size());
+        for (Entry entry : entries.values()) {
+            if (entry.lastModified > 0 && !entry.name.endsWith(PART_SUFFIX)) {
+                result.add(entry);
+            }
+        }
+        if (sortOrder == SORT_NAME) {
+            Collections.sort(result, new Comparator<Entry>() {
+                @Override
+                public int compare(Entry a, Entry b) {
+                    return a.name.compareToIgnoreCase(b.name);
+                }
+            });
+        } else {
+            Collections.sort(result, new Comparator<Entry>() {
+                @Override
+                public int compare(Entry a, Entry b) {
+                    return a.lastModified > b.lastModified ? -1 : (a.lastModified == b.lastModified ? 0 : 1);
+                }
+            });
+        }
+        return result;
+    }
+
+    /**
+     * Drops the in-memory index so it is rebuilt on next use. Kept while a
+     * reserved name has no file on disk yet, so allocations cannot collide.
+     */
+    public synchronized long releaseMemory() {
+        if (!loaded) {
+            return 0L;
+        }
+        long bytes = 0L;
+        for (Entry entry : entries.values()) {
+            if (entry.lastModified == 0L && !new File(dir, entry.name).exists()) {
+                return 0L;
+            }
+            bytes += ENTRY_OVERHEAD_BYTES + 2L * entry.name.length();
+        }
+        stopWatching();
+        entries.clear();
+        nextSuffix.clear();
+        loaded = false;
+        return bytes;
+    }
+
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        // A rescan after onDirectoryGone must not forget names still being written.
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().lastModified != 0L) {
+                iterator.remove();
+            }
+        }
+        nextSuffix.clear();
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile()) {
+                    put(file.getName(), file.length(), file.lastModified());
+                }
+            }
+        }
+        stopWatching();
+        if (watcher != null) {
+            watcher.start(dir, this);
+            watching = true;
+        }
+    }
+
+    private void stopWatching() {
+        if (watching) {
+            watcher.stop();
+            watching = false;
+        }
+    }
+
+    /** A file in the directory was created, written or moved in. */
+    public synchronized void onFileChanged(String name) {
+        if (!loaded || name == null) {
+            return;
+        }
+        File file = new File(dir, name);
+        if (file.isFile()) {
+            put(name, file.length(), file.lastModified());
+        }
+    }
+
+    /** A file was deleted or moved out of the directory. */
+    public synchronized void onFileRemoved(String name) {
+        if (loaded && name != null) {
+            entries.remove(name);
+        }
+    }
+
+    /** The directory itself was deleted or moved; rescan on next use. */
+    public synchronized void onDirectoryGone() {
+        loaded = false;
+    }
+
+    private boolean isFree(String name) {
+        if (entries.containsKey(name)) {
+            return false;
+        }
+        File file = new File(dir, name);
+        if (file.exists()) {
+            put(name, file.length(), file.lastModified());
+            return false;
+        }
+        // Another writer's partial file: its rename would overwrite ours.
+        return !new File(dir, name + PART_SUFFIX).exists();
+    }
+
+    private void reserve(String name) {
+        entries.put(name, new Entry(name, 0L, 0L));
+    }
+
+    private void put(String name, long size, long lastModified) {
+        entries.put(name, new Entry(name, size, lastModified));
+        int open = name.lastIndexOf('(');
+        int close = name.lastIndexOf(')');
+        if (open <= 0 || close != open + 1 + countDigits(name, open + 1)) {
+            return;
+        }
+        try {
+            int index = Integer.parseInt(name.substring(open + 1, close));
+            String key = name.substring(0, open) + name.substring(close + 1);
+            Integer current = nextSuffix.get(key);
+            if (current == null || current <= index) {
+                nextSuffix.put(key, index + 1);
+            }
+        } catch (NumberFormatException ignored) {
+        }
+    }
+
+    private static int countDigits(String value, int start) {
+        int count = 0;
+        while (start + count < value.length() && Character.isDigit(value.charAt(start + count))) {
+            count++;
+        }
+        return count;
+    }
+
+    public static final class Entry {
+        public final String name;
+        public final long size;
+        public final long lastModified;
+
+        Entry(String name, long size, long lastModified) {
+            this.name = name;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.dbgid.spxid;
+
+import java.io.File;
+import java.io.IOException;
+
+/** Hands out output files that no other save will get, and takes back the ones that were never written. */
+public interface FileAllocator {
+
+    /** Returns a free file for the name, creating its directory if needed. */
+    File allocate(String fileName) throws IOException;
+
+    /** Called when a save that got the file fails or is aborted; the file itself is already deleted. */
+    void release(File file);
+}
@@ -0,0 +1,106 @@
+package com.dbgid.spxid;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+public final class FileIo {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long TRANSFER_CHUNK = 8L * 1024L * 1024L;
+
+    private FileIo() {
+    }
+
+    public static long copy(InputStream input, OutputStream output) throws IOException {
+        if (input instanceof FileInputStream && output instanceof FileOutputStream) {
+            return transferTo(((FileInputStream) input).getChannel(), ((FileOutputStream) output).getChannel());
+        }
+        if (input instanceof FileInputStream) {
+            FileChannel source = ((FileInputStream) input).getChannel();
+            return transferTo(source, Channels.newChannel(output));
+        }
+        // A stream into a file goes through the heap buffer too: a channel
+        // would only add a direct buffer per call on top of the same copy.
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long total = 0;
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+            total += read;
+        }
+        return total;
+    }
+
+    public static void write(File file, byte[] data) throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(data);
+            output.close();
+        } finally {
+            closeQuietly(output);
+        }
+    }
+
+    public static long copyFile(File source, File target) throws IOException {
+        File parent = target.getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        FileInputStream input = new FileInputStream(source);
+        FileOutputStream output = null;
+        try {
+            output = new FileOutputStream(target);
+            return transferTo(input.getChannel(), output.getChannel());
+        } finally {
+            closeQuietly(input);
+            closeQuietly(output);
+        }
+    }
+
+    public static boolean copyFileIfChanged(File source, File target) throws IOException {
+        if (target.exists() && target.length() == source.length()
+                && target.lastModified() == source.lastModified()) {
+            return false;
+        }
+        copyFile(source, target);
+        target.setLastModified(source.lastModified());
+        return true;
+    }
+
+    private static long transferTo(FileChannel source, WritableByteChannel target) throws IOException {
+        long size = source.size();
+        long position = source.position();
+        long copied = 0;
+        while (position + copied < size) {
+            long count = source.transferTo(position + copied, Math.min(TRANSFER_CHUNK, size - position - copied), target);
+            if (count <= 0) {
+                break;
+            }
+            copied += count;
+        }
+        source.position(position + copied);
+        return copied;
+    }
+
+    static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.dbgid.spxid;
+
+import java.io.File;
+
+public final class FileNames {
+
+    public static final String DEFAULT_NAME = "download";
+
+    private FileNames() {
+    }
+
+    /** Replaces the characters that are not allowed in file names on Android storage. */
+    public static String sanitize(String fileName) {
+        int length = fileName.length();
+        int i = 0;
+        while (i < length && !isReserved(fileName.charAt(i))) {
+            i++;
+        }
+        if (i == length) {
+            return fileName;
+        }
+        char[] chars = fileName.toCharArray();
+        for (; i < length; i++) {
+            if (isReserved(chars[i])) {
+                chars[i] = '_';
+            }
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Trims and sanitizes a name, falling back to "download". The extension
+     * (already resolved from the mime type by the caller) is only appended
+     * when the name has none.
+     */
+    public static String ensure(String fileName, String extension) {
+        String name = fileName != null ? fileName.trim() : "";
+        if (name.length() == 0) {
+            name = DEFAULT_NAME;
+        }
+        name = sanitize(name);
+        if (name.indexOf('.') == -1 && extension != null && extension.length() > 0) {
+            name = name + "." + extension;
+        }
+        return name;
+    }
+
+    /** Returns the file itself, or the first free "name(n).ext" next to it. */
+    public static File makeUnique(File file) {
+        if (!file.exists()) {
+            return file;
+        }
+        String name = file.getName();
+        String base = name;
+        String ext = "";
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            base = name.substring(0, dot);
+            ext = name.substring(dot);
+        }
+        int index = 1;
+        File candidate;
+        do {
+            candidate = new File(file.getParentFile(), base + "(" + index + ")" + ext);
+            index++;
+        } while (candidate.exists());
+        return candidate;
+    }
+
+    /** Escapes a value for a single-quoted JavaScript string literal. Carriage returns are dropped. */
+    public static String escapeJs(String value) {
+        if (value == null) {
+            return "";
+        }
+        int length = value.length();
+        int i = 0;
+        while (i < length && !needsEscape(value.charAt(i))) {
+            i++;
+        }
+        if (i == length) {
+            return value;
+        }
+        StringBuilder builder = new StringBuilder(length + 16);
+        builder.append(value, 0, i);
+        for (; i < length; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\'':
+                    builder.append("\\'");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    break;
+                default:
+                    builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    private static boolean isReserved(char c) {
+        switch (c) {
+            case '\\':
+            case '/':
+            case ':':
+            case '*':
+            case '?':
+            case '"':
+            case '<':
+            case '>':
+            case '|':
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean needsEscape(char c) {
+        return c == '\\' || c == '\'' || c == '\n' || c == '\r';
+    }
+}
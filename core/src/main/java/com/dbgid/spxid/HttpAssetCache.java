@@ -0,0 +1,590 @@
+package com.dbgid.spxid;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * On-disk LRU of HTTP GET responses keyed by URL, revalidated with
+ * ETag/Last-Modified. Only responses a shared cache may hand to any session
+ * are stored: a 200 that sets no cookie, is not private, no-store or
+ * no-cache, and does not vary on Cookie. Redirects are never followed, so a
+ * body is only ever stored under the URL that produced it. Plain Java so it
+ * can run against a local server; WebAssetCache adapts it to the WebView.
+ */
+public final class HttpAssetCache {
+
+    private static final String BODY_SUFFIX = ".body";
+    private static final String META_SUFFIX = ".meta";
+    private static final String HEADER_PREFIX = "header.";
+    private static final int TIMEOUT_MS = 15000;
+
+    private static final Set<String> CACHEABLE_EXTENSIONS = new HashSet<String>(Arrays.asList(
+            "js", "mjs", "css", "woff", "woff2", "ttf", "otf", "eot", "png", "jpg", "jpeg", "gif",
+            "svg", "webp", "ico", "wasm", "bin", "onnx", "tflite", "traineddata", "gz"));
+
+    /** Not forwarded: we need the whole identity-encoded body, and our own validators. */
+    private static final Set<String> DROPPED_REQUEST_HEADERS = new HashSet<String>(Arrays.asList(
+            "range", "accept-encoding", "if-none-match", "if-modified-since", "if-range"));
+
+    /** Describe the transfer rather than the body, or were undone by HttpURLConnection. */
+    private static final Set<String> DROPPED_RESPONSE_HEADERS = new HashSet<String>(Arrays.asList(
+            "connection", "keep-alive", "transfer-encoding", "content-encoding", "content-length",
+            "set-cookie", "set-cookie2"));
+
+    private final File directory;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(64, 0.75f, true);
+    private final Set<String> uncacheable = Collections.synchronizedSet(new HashSet<String>());
+    private final AtomicLong nextTempId = new AtomicLong();
+    private long totalBytes;
+
+    public HttpAssetCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /** True for paths whose extension marks a static asset. JSON is left out: it is usually API data. */
+    public static boolean hasCacheableExtension(String path) {
+        if (path == null) {
+            return false;
+        }
+        int dot = path.lastIndexOf('.');
+        if (dot == -1 || dot < path.lastIndexOf('/')) {
+            return false;
+        }
+        return CACHEABLE_EXTENSIONS.contains(path.substring(dot + 1).toLowerCase(Locale.US));
+    }
+
+    /** Returns the stored response for url and marks it recently used, or null. */
+    public synchronized Entry get(String url) {
+        String key = keyFor(url);
+        File body = new File(directory, key + BODY_SUFFIX);
+        Properties meta = readMeta(key);
+        if (meta == null || !body.exists()) {
+            return null;
+        }
+        entries.get(key);
+        body.setLastModified(System.currentTimeMillis());
+        return new Entry(url, body, meta);
+    }
+
+    /**
+     * True when the last 200 for url could not be shared, so fetching it
+     * again would only double the WebView's own request.
+     */
+    public boolean isUncacheable(String url) {
+        return uncacheable.contains(keyFor(url));
+    }
+
+    /**
+     * Fetches url, revalidating cached when given, and stores the response.
+     * Returns the stored or revalidated entry, or null when the response
+     * may not be stored or the request failed.
+     */
+    public Entry fetch(String url, Entry cached, Map<String, String> requestHeaders) {
+        String key = keyFor(url);
+        HttpURLConnection connection = null;
+        InputStream input = null;
+        OutputStream output = null;
+        File temp = new File(directory, key + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            if (!directory.exists() && !directory.mkdirs()) {
+                return null;
+            }
+            connection = open(url, requestHeaders);
+            if (cached != null) {
+                String etag = cached.meta.getProperty("etag");
+                String lastModified = cached.meta.getProperty("lastModified");
+                if (etag != null) {
+                    connection.setRequestProperty("If-None-Match", etag);
+                }
+                if (lastModified != null) {
+                    connection.setRequestProperty("If-Modified-Since", lastModified);
+                }
+            }
+            int status = connection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+                synchronized (this) {
+                    cached.meta.setProperty("storedAt", Long.toString(System.currentTimeMillis()));
+                    writeMeta(key, cached.meta);
+                }
+                return cached;
+            }
+            if (status != HttpURLConnection.HTTP_OK) {
+                return null;
+            }
+            if (!isShareable(connection)) {
+                uncacheable.add(key);
+                return null;
+            }
+            uncacheable.remove(key);
+            input = connection.getInputStream();
+            output = new FileOutputStream(temp);
+            FileIo.copy(input, output);
+            output.close();
+            output = null;
+            Properties meta = describe(connection);
+            store(key, temp, meta);
+            return new Entry(url, new File(directory, key + BODY_SUFFIX), meta);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            FileIo.closeQuietly(input);
+            FileIo.closeQuietly(output);
+            temp.delete();
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Fetches url for a caller that is waiting on the body, returning once
+     * the headers are in. The body is written to the cache as the caller
+     * reads it and stored when the stream reaches its end; closing it
+     * earlier, or a failed write, stores nothing. Returns null under the
+     * same conditions as fetch().
+     */
+    public Download fetchStreaming(String url, Map<String, String> requestHeaders) {
+        String key = keyFor(url);
+        HttpURLConnection connection = null;
+        try {
+            connection = open(url, requestHeaders);
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                connection.disconnect();
+                return null;
+            }
+            if (!isShareable(connection)) {
+                uncacheable.add(key);
+                connection.disconnect();
+                return null;
+            }
+            uncacheable.remove(key);
+            InputStream input = connection.getInputStream();
+            Properties meta = describe(connection);
+            OutputStream output = null;
+            File temp = new File(directory, key + ".s" + nextTempId.incrementAndGet() + ".tmp");
+            if (directory.exists() || directory.mkdirs()) {
+                try {
+                    output = new FileOutputStream(temp);
+                } catch (IOException e) {
+                    output = null;
+                }
+            }
+            return new Download(key, new Entry(url, new File(directory, key + BODY_SUFFIX), meta),
+                    connection, input, output, temp);
+        } catch (IOException e) {
+            if (connection != null) {
+                connection.disconnect();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Downloads url for one imminent use, outside the LRU. Same rules as
+     * fetch() except that no-cache is fine, since the copy is used once
+     * right away. The caller owns the returned file.
+     */
+    public Entry fetchOnce(String url, Map<String, String> requestHeaders, File target) {
+        HttpURLConnection connection = null;
+        InputStream input = null;
+        OutputStream output = null;
+        try {
+            connection = open(url, requestHeaders);
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK
+                    || connection.getHeaderField("Set-Cookie") != null
+                    || hasDirective(connection.getHeaderField("Cache-Control"), "no-store")) {
+                return null;
+            }
+            File parent = target.getParentFile();
+            if (parent != null && !parent.exists() && !parent.mkdirs()) {
+                return null;
+            }
+            input = connection.getInputStream();
+            output = new FileOutputStream(target);
+            FileIo.copy(input, output);
+            output.close();
+            output = null;
+            return new Entry(url, target, describe(connection));
+        } catch (IOException e) {
+            target.delete();
+            return null;
+        } finally {
+            FileIo.closeQuietly(input);
+            FileIo.closeQuietly(output);
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Opens a connection with a HEAD request and returns it to the
+     * keep-alive pool, so the next request to the host skips DNS, TCP and
+     * TLS. Returns the status, or -1 when the host could not be reached.
+     */
+    public static int preconnect(String url, Map<String, String> requestHeaders) {
+        HttpURLConnection connection = null;
+        try {
+            connection = open(url, requestHeaders);
+            connection.setRequestMethod("HEAD");
+            int status = connection.getResponseCode();
+            // Closing the (empty) body hands the socket back to the pool.
+            InputStream body = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            FileIo.closeQuietly(body);
+            return status;
+        } catch (IOException e) {
+            if (connection != null) {
+                connection.disconnect();
+            }
+            return -1;
+        }
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public synchronized void loadIndex() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long left = a.lastModified();
+                long right = b.lastModified();
+                return left < right ? -1 : (left == right ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(".tmp")) {
+                file.delete();
+            } else if (name.endsWith(BODY_SUFFIX)) {
+                String key = name.substring(0, name.length() - BODY_SUFFIX.length());
+                if (!entries.containsKey(key)) {
+                    entries.put(key, file.length());
+                    totalBytes += file.length();
+                }
+            }
+        }
+        trim();
+    }
+
+    private static HttpURLConnection open(String url, Map<String, String> requestHeaders) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setInstanceFollowRedirects(false);
+        connection.setConnectTimeout(TIMEOUT_MS);
+        connection.setReadTimeout(TIMEOUT_MS);
+        if (requestHeaders != null) {
+            for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+                String name = header.getKey();
+                if (name != null && header.getValue() != null
+                        && !DROPPED_REQUEST_HEADERS.contains(name.toLowerCase(Locale.US))) {
+                    connection.setRequestProperty(name, header.getValue());
+                }
+            }
+        }
+        return connection;
+    }
+
+    private static boolean isShareable(HttpURLConnection connection) {
+        String cacheControl = connection.getHeaderField("Cache-Control");
+        if (hasDirective(cacheControl, "no-store") || hasDirective(cacheControl, "private")
+                || hasDirective(cacheControl, "no-cache")) {
+            return false;
+        }
+        if (connection.getHeaderField("Set-Cookie") != null) {
+            return false;
+        }
+        String vary = connection.getHeaderField("Vary");
+        return vary == null || (!vary.contains("*") && !vary.toLowerCase(Locale.US).contains("cookie"));
+    }
+
+    private static boolean hasDirective(String cacheControl, String directive) {
+        if (cacheControl == null) {
+            return false;
+        }
+        for (String part : cacheControl.toLowerCase(Locale.US).split(",")) {
+            String name = part.trim();
+            int equals = name.indexOf('=');
+            if ((equals == -1 ? name : name.substring(0, equals).trim()).equals(directive)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Properties describe(HttpURLConnection connection) {
+        Properties meta = new Properties();
+        String contentType = connection.getContentType();
+        String mimeType = contentType;
+        String encoding = null;
+        if (contentType != null) {
+            int separator = contentType.indexOf(';');
+            if (separator != -1) {
+                mimeType = contentType.substring(0, separator).trim();
+                int charset = contentType.toLowerCase(Locale.US).indexOf("charset=", separator);
+                if (charset != -1) {
+                    encoding = contentType.substring(charset + 8).trim();
+                }
+            }
+        }
+        meta.setProperty("mimeType", mimeType != null ? mimeType : "application/octet-stream");
+        if (encoding != null) {
+            meta.setProperty("encoding", encoding);
+        }
+        if (connection.getHeaderField("ETag") != null) {
+            meta.setProperty("etag", connection.getHeaderField("ETag"));
+        }
+        if (connection.getHeaderField("Last-Modified") != null) {
+            meta.setProperty("lastModified", connection.getHeaderField("Last-Modified"));
+        }
+        for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+            String name = header.getKey();
+            List<String> values = header.getValue();
+            if (name != null && values != null && !values.isEmpty()
+                    && !DROPPED_RESPONSE_HEADERS.contains(name.toLowerCase(Locale.US))) {
+                meta.setProperty(HEADER_PREFIX + name, values.get(values.size() - 1));
+            }
+        }
+        meta.setProperty("storedAt", Long.toString(System.currentTimeMillis()));
+        return meta;
+    }
+
+    private synchronized void store(String key, File temp, Properties meta) throws IOException {
+        File body = new File(directory, key + BODY_SUFFIX);
+        Long previous = entries.remove(key);
+        if (previous != null) {
+            totalBytes -= previous;
+        }
+        body.delete();
+        if (!temp.renameTo(body)) {
+            throw new IOException("Cannot store " + key);
+        }
+        writeMeta(key, meta);
+        long size = body.length();
+        entries.put(key, size);
+        totalBytes += size;
+        trim();
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            iterator.remove();
+            totalBytes -= eldest.getValue();
+            new File(directory, eldest.getKey() + BODY_SUFFIX).delete();
+            new File(directory, eldest.getKey() + META_SUFFIX).delete();
+        }
+    }
+
+    /** Callers hold the lock, so a reader never sees a half-written file. */
+    private Properties readMeta(String key) {
+        File file = new File(directory, key + META_SUFFIX);
+        if (!file.exists()) {
+            return null;
+        }
+        FileInputStream input = null;
+        try {
+            input = new FileInputStream(file);
+            Properties meta = new Properties();
+            meta.load(input);
+            return meta;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            FileIo.closeQuietly(input);
+        }
+    }
+
+    private void writeMeta(String key, Properties meta) throws IOException {
+        FileOutputStream output = new FileOutputStream(new File(directory, key + META_SUFFIX));
+        try {
+            meta.store(output, null);
+            output.close();
+        } finally {
+            FileIo.closeQuietly(output);
+        }
+    }
+
+    static String keyFor(String url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(url.getBytes("UTF-8"));
+            StringBuilder builder = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+                builder.append(Character.forDigit(b & 0xf, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(url.hashCode());
+        } catch (IOException e) {
+            return Integer.toHexString(url.hashCode());
+        }
+    }
+
+    /**
+     * The body of a fetchStreaming() response. Everything read is also
+     * written to a temporary file, which becomes the cache entry at EOF.
+     */
+    public final class Download extends InputStream {
+        /** Describes the response; its body file exists once the stream is stored. */
+        public final Entry entry;
+        private final String key;
+        private final HttpURLConnection connection;
+        private final InputStream input;
+        private final File temp;
+        private OutputStream output;
+        private boolean finished;
+        private boolean atEnd;
+
+        Download(String key, Entry entry, HttpURLConnection connection, InputStream input,
+                 OutputStream output, File temp) {
+            this.key = key;
+            this.entry = entry;
+            this.connection = connection;
+            this.input = input;
+            this.output = output;
+            this.temp = temp;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int read = read(single, 0, 1);
+            return read == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read;
+            try {
+                read = input.read(buffer, offset, length);
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+            if (read == -1) {
+                atEnd = true;
+                finish();
+            } else if (read > 0 && output != null) {
+                try {
+                    output.write(buffer, offset, read);
+                } catch (IOException e) {
+                    // Full disk: keep serving the caller, just don't store.
+                    discard();
+                }
+            }
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return input.available();
+        }
+
+        /**
+         * Before EOF this drops the partial copy and the connection; after
+         * it, the connection goes back to the keep-alive pool.
+         */
+        @Override
+        public synchronized void close() {
+            if (!finished) {
+                finished = true;
+                discard();
+            }
+            FileIo.closeQuietly(input);
+            if (!atEnd) {
+                connection.disconnect();
+            }
+        }
+
+        private synchronized void finish() {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            if (output == null) {
+                return;
+            }
+            try {
+                output.close();
+                output = null;
+                store(key, temp, entry.meta);
+            } catch (IOException e) {
+                discard();
+            }
+        }
+
+        private void discard() {
+            FileIo.closeQuietly(output);
+            output = null;
+            temp.delete();
+        }
+    }
+
+    public static final class Entry {
+        public final String url;
+        public final File body;
+        final Properties meta;
+
+        Entry(String url, File body, Properties meta) {
+            this.url = url;
+            this.body = body;
+            this.meta = meta;
+        }
+
+        public String getMimeType() {
+            return meta.getProperty("mimeType", "application/octet-stream");
+        }
+
+        public String getEncoding() {
+            return meta.getProperty("encoding");
+        }
+
+        public long getStoredAt() {
+            try {
+                return Long.parseLong(meta.getProperty("storedAt", "0"));
+            } catch (NumberFormatException e) {
+                return 0L;
+            }
+        }
+
+        /** The response headers worth replaying, minus transfer and cookie headers. */
+        public Map<String, String> getHeaders() {
+            Map<String, String> headers = new LinkedHashMap<String, String>();
+            for (String name : meta.stringPropertyNames()) {
+                if (name.startsWith(HEADER_PREFIX)) {
+                    headers.put(name.substring(HEADER_PREFIX.length()), meta.getProperty(name));
+                }
+            }
+            return headers;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.dbgid.spxid;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public final class IoScheduler {
+
+    public interface Listener {
+        void onJobFinished(Job job);
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final Semaphore permits;
+    private final List<Job> jobs = new ArrayList<Job>();
+    private volatile Listener listener;
+
+    public IoScheduler(int threads, int maxPendingJobs) {
+        final AtomicInteger count = new AtomicInteger(1);
+        executor = new ThreadPoolExecutor(threads, threads, 30L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "io-" + count.getAndIncrement());
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        permits = new Semaphore(Math.max(threads, maxPendingJobs), true);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public Job submit(Object owner, String name, Runnable task, long timeoutMs) throws InterruptedException {
+        if (!permits.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS)) {
+            return null;
+        }
+        Job job = new Job(owner, name, task);
+        synchronized (jobs) {
+            jobs.add(job);
+        }
+        try {
+            job.future = executor.submit(job);
+        } catch (RuntimeException e) {
+            finish(job);
+            throw e;
+        }
+        return job;
+    }
+
+    public void cancelAll(Object owner) {
+        List<Job> cancelled = new ArrayList<Job>();
+        synchronized (jobs) {
+            for (Job job : jobs) {
+                if (job.owner == owner) {
+                    cancelled.add(job);
+                }
+            }
+        }
+        for (Job job : cancelled) {
+            job.cancel();
+        }
+    }
+
+    public int getPendingCount() {
+        synchronized (jobs) {
+            return jobs.size();
+        }
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000L;
+    }
+
+    private void finish(Job job) {
+        boolean removed;
+        synchronized (jobs) {
+            removed = jobs.remove(job);
+        }
+        if (removed) {
+            permits.release();
+        }
+    }
+
+    public final class Job implements Runnable {
+        private final Object owner;
+        private final String name;
+        private final Runnable task;
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+        // Claimed by whichever comes first: run() or a cancel() that stops the
+        // job before it starts. The claimant releases the permit.
+        private final AtomicBoolean started = new AtomicBoolean();
+        private final long queuedAt = now();
+        private volatile Future<?> future;
+        private volatile long startedAt;
+        private volatile long finishedAt;
+        private volatile Throwable failure;
+
+        Job(Object owner, String name, Runnable task) {
+            this.owner = owner;
+            this.name = name;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            if (!started.compareAndSet(false, true)) {
+                return;
+            }
+            startedAt = now();
+            try {
+                if (!cancelled.get()) {
+                    task.run();
+                }
+            } catch (Throwable t) {
+                // executor.submit wraps the job in a FutureTask that nobody reads,
+                // so anything thrown here would vanish. Keep it for the listener.
+                failure = t;
+            } finally {
+                finishedAt = now();
+                finish(this);
+                Listener current = listener;
+                if (current != null) {
+                    current.onJobFinished(this);
+                }
+            }
+        }
+
+        /**
+         * A job that has not started never will. A running one is interrupted
+         * but keeps its permit until it returns, since its payload is still in
+         * memory until then.
+         */
+        public void cancel() {
+            if (cancelled.compareAndSet(false, true)) {
+                Future<?> current = future;
+                if (current != null) {
+                    current.cancel(true);
+                }
+                if (started.compareAndSet(false, true)) {
+                    finish(this);
+                }
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /** What the task threw, or null if it returned normally. */
+        public Throwable getFailure() {
+            return failure;
+        }
+
+        public boolean isCancelled() {
+            return cancelled.get();
+        }
+
+        public long getQueueMillis() {
+            return (startedAt != 0 ? startedAt : now()) - queuedAt;
+        }
+
+        public long getRunMillis() {
+            return startedAt == 0 ? 0 : (finishedAt != 0 ? finishedAt : now()) - startedAt;
+        }
+    }
+}
@@ -0,0 +1,582 @@
+package com.dbgid.spxid;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives the blob download bridge from several "page" threads at once with
+ * a weighted mix of calls and payload sizes, then checks every file on disk
+ * against the bytes that were sent. Exits with status 1 when a file is lost,
+ * corrupted, handed to two saves or left behind, or when a valid payload
+ * fails, or when the export index still pins a reservation at the end.
+ * Scheduler rejections are reported but are expected backpressure.
+ * Options are --name=value, see DEFAULTS.
+ */
+public final class BridgeSoak {
+
+    private static final String[][] DEFAULTS = {
+            {"concurrency", "4"},
+            {"requests", "200"},
+            {"duration", "0"},
+            {"sizes", "10240:60,1048576:30,10485760:9,52428800:1"},
+            {"mix", "save:50,chunked:40,foreign:5,error:5"},
+            {"malformed", "0.05"},
+            {"trim", "0.02"},
+            {"names", "5"},
+            {"io-threads", "1"},
+            {"max-pending", "2"},
+            {"seed", "1"},
+            {"timeout", "300"},
+            {"dir", "build/soak/files"},
+            {"report", "build/soak/report.json"},
+    };
+
+    private static final String[] KINDS = {"save", "chunked", "error", "foreign"};
+    private static final int KIND_SAVE = 0;
+    private static final int KIND_CHUNKED = 1;
+    private static final int KIND_ERROR = 2;
+    /**
+     * Another app replacing a finished export: the watcher sees the delete
+     * but misses the new file, so only the disk knows the name is taken.
+     */
+    private static final int KIND_FOREIGN = 3;
+
+    private static final int PENDING = 0;
+    private static final int SAVED = 1;
+    private static final int FAILED = 2;
+    private static final int REJECTED = 3;
+    private static final int REPORTED = 4;
+    private static final int SKIPPED = 5;
+
+    /** How long a page waits before retrying a save the bridge answered "busy". */
+    private static final long SAVE_RETRY_MS = 100L;
+    private static final int SAVE_RETRIES = 50;
+
+    private final Map<String, String> options;
+    private final List<Request> requests = new ArrayList<Request>();
+    private final AtomicInteger nextRequest = new AtomicInteger();
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicLong peakHeap = new AtomicLong();
+    private volatile Throwable callerFailure;
+
+    private BridgeSoak(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<String, String>();
+        for (String[] option : DEFAULTS) {
+            options.put(option[0], option[1]);
+        }
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0 || !options.containsKey(arg.substring(2, equals))) {
+                System.err.println("Unknown option " + arg + ", expected --name=value with name in " + options.keySet());
+                System.exit(2);
+            }
+            options.put(arg.substring(2, equals), arg.substring(equals + 1));
+        }
+        System.exit(new BridgeSoak(options).run() ? 0 : 1);
+    }
+
+    /** Truncates to 4n+1 characters, which leaves a dangling sixth bit that the decoder rejects. */
+    static String corrupt(String base64) {
+        return base64.substring(0, Math.max(1, (base64.length() / 4) * 4 - 3));
+    }
+
+    private boolean run() throws Exception {
+        File dir = new File(options.get("dir"));
+        deleteTree(dir);
+        if (!dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        final int requestLimit = intOption("requests");
+        long durationMs = Long.parseLong(options.get("duration")) * 1000L;
+        final long deadline = durationMs > 0 ? System.nanoTime() + durationMs * 1000000L : Long.MAX_VALUE;
+        final Weighted sizes = new Weighted(options.get("sizes"));
+        final Weighted mix = new Weighted(options.get("mix"));
+        for (String kind : mix.values) {
+            if (!Arrays.asList(KINDS).contains(kind)) {
+                throw new IllegalArgumentException("Unknown call " + kind + " in --mix, expected " + Arrays.asList(KINDS));
+            }
+        }
+        final double malformed = Double.parseDouble(options.get("malformed"));
+        final double trim = Double.parseDouble(options.get("trim"));
+        final int names = intOption("names");
+        final long seed = Long.parseLong(options.get("seed"));
+        final SoakBridge bridge = new SoakBridge(dir,
+                new IoScheduler(intOption("io-threads"), intOption("max-pending")));
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        System.gc();
+        long heapBefore = memory.getHeapMemoryUsage().getUsed();
+        int threadsBefore = threads.getThreadCount();
+        threads.resetPeakThreadCount();
+        Thread sampler = startHeapSampler(memory);
+
+        long startedAt = System.nanoTime();
+        List<Thread> callers = new ArrayList<Thread>();
+        for (int i = 0; i < intOption("concurrency"); i++) {
+            Thread caller = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (System.nanoTime() < deadline) {
+                            int id = nextRequest.getAndIncrement();
+                            if (deadline == Long.MAX_VALUE && id >= requestLimit) {
+                                return;
+                            }
+                            Random random = new Random(seed * 1000003L + id);
+                            int kind = Arrays.asList(KINDS).indexOf(mix.pick(random));
+                            int size = Integer.parseInt(sizes.pick(random));
+                            boolean corrupt = kind != KIND_ERROR && kind != KIND_FOREIGN
+                                    && random.nextDouble() < malformed;
+                            if (random.nextDouble() < trim) {
+                                bridge.trimMemory();
+                            }
+                            send(bridge, new Request(id, kind, size, corrupt), "resi-" + random.nextInt(names), random);
+                        }
+                    } catch (Throwable t) {
+                        callerFailure = t;
+                    }
+                }
+            }, "page-" + i);
+            caller.start();
+            callers.add(caller);
+        }
+        for (Thread caller : callers) {
+            caller.join();
+        }
+        long timeoutAt = System.nanoTime() + intOption("timeout") * 1000000000L;
+        while (outstanding.get() > 0 && System.nanoTime() < timeoutAt) {
+            Thread.sleep(20);
+        }
+        long elapsedNanos = System.nanoTime() - startedAt;
+        sampler.interrupt();
+        sampler.join();
+        int peakThreads = threads.getPeakThreadCount();
+        if (callerFailure != null) {
+            callerFailure.printStackTrace();
+        }
+        return verify(dir, bridge, elapsedNanos, heapBefore, threadsBefore, peakThreads) && callerFailure == null;
+    }
+
+    private void send(final SoakBridge bridge, final Request request, String fileName, Random random)
+            throws IOException, InterruptedException {
+        synchronized (requests) {
+            requests.add(request);
+        }
+        if (request.kind == KIND_ERROR) {
+            bridge.onError("xhr_error");
+            request.finish(REPORTED, null);
+            return;
+        }
+        byte[] payload = new byte[request.size];
+        random.nextBytes(payload);
+        request.digest = sha1(payload);
+        if (request.kind == KIND_FOREIGN) {
+            request.start();
+            File file = bridge.replaceForeign(payload, fileName, new FileFilter() {
+                @Override
+                public boolean accept(File target) {
+                    return retire(target);
+                }
+            });
+            request.finish(file != null ? SAVED : SKIPPED, file);
+            return;
+        }
+        if (request.kind == KIND_CHUNKED) {
+            request.start();
+            int chunks = Math.max(1, (payload.length + SoakBridge.BLOB_CHUNK_SIZE - 1) / SoakBridge.BLOB_CHUNK_SIZE);
+            File file = bridge.requestBlobDownload(payload, fileName, request.corrupt ? random.nextInt(chunks) : -1);
+            request.finish(file != null ? SAVED : FAILED, file);
+            return;
+        }
+        String base64 = Base64.getEncoder().encodeToString(payload);
+        payload = null;
+        if (request.corrupt) {
+            base64 = corrupt(base64);
+        }
+        outstanding.incrementAndGet();
+        request.start();
+        Base64SaveTask.Callback callback = new Base64SaveTask.Callback() {
+            @Override
+            public void onSaved(File file, String mimeType, long bytes, long decodeMillis, long writeMillis) {
+                request.finish(SAVED, file);
+                outstanding.decrementAndGet();
+            }
+
+            @Override
+            public void onFailed(String name) {
+                request.finish(FAILED, null);
+                outstanding.decrementAndGet();
+            }
+        };
+        boolean accepted = bridge.saveBase64(base64, fileName, callback);
+        for (int retry = 0; !accepted && retry < SAVE_RETRIES; retry++) {
+            Thread.sleep(SAVE_RETRY_MS);
+            accepted = bridge.saveBase64(base64, fileName, callback);
+        }
+        if (!accepted) {
+            request.finish(REJECTED, null);
+            outstanding.decrementAndGet();
+        }
+    }
+
+    private boolean verify(File dir, SoakBridge bridge, long elapsedNanos, long heapBefore, int threadsBefore,
+            int peakThreads) throws IOException {
+        int[] outcomes = new int[6];
+        int lost = 0;
+        int corrupted = 0;
+        int collisions = 0;
+        int failedValid = 0;
+        int acceptedMalformed = 0;
+        long savedBytes = 0;
+        Map<String, List<Long>> latencies = new LinkedHashMap<String, List<Long>>();
+        latencies.put(KINDS[KIND_SAVE], new ArrayList<Long>());
+        latencies.put(KINDS[KIND_CHUNKED], new ArrayList<Long>());
+        latencies.put(KINDS[KIND_FOREIGN], new ArrayList<Long>());
+        Set<String> savedNames = new HashSet<String>();
+        List<String> problems = new ArrayList<String>();
+        List<Request> snapshot;
+        synchronized (requests) {
+            snapshot = new ArrayList<Request>(requests);
+        }
+        for (Request request : snapshot) {
+            int outcome = request.outcome;
+            outcomes[outcome]++;
+            if (outcome == PENDING) {
+                lost++;
+                problems.add("lost: " + request);
+                continue;
+            }
+            if (request.kind == KIND_ERROR) {
+                continue;
+            }
+            if (outcome == REJECTED || outcome == SKIPPED) {
+                continue;
+            }
+            latencies.get(KINDS[request.kind]).add(request.latencyNanos / 1000000L);
+            if (request.corrupt) {
+                if (outcome != FAILED) {
+                    acceptedMalformed++;
+                    problems.add("malformed payload saved: " + request);
+                }
+                continue;
+            }
+            if (outcome == FAILED) {
+                failedValid++;
+                problems.add("valid payload failed: " + request);
+                continue;
+            }
+            if (request.retired) {
+                if (!request.intactWhenRetired) {
+                    corrupted++;
+                    problems.add("corrupted before it was replaced: " + request);
+                }
+                continue;
+            }
+            if (!savedNames.add(request.file.getName())) {
+                collisions++;
+                problems.add("file handed out twice: " + request);
+            }
+            if (!request.file.isFile() || request.file.length() != request.size
+                    || !Arrays.equals(request.digest, sha1(request.file))) {
+                corrupted++;
+                problems.add("missing or corrupted: " + request);
+            }
+            savedBytes += request.size;
+        }
+        List<String> leftovers = new ArrayList<String>();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!savedNames.contains(file.getName())) {
+                    leftovers.add(file.getName());
+                }
+            }
+        }
+        if (!leftovers.isEmpty()) {
+            problems.add("unexpected files: " + leftovers);
+        }
+        boolean indexReleased = savedNames.isEmpty() || bridge.trimMemory() > 0;
+        if (!indexReleased) {
+            problems.add("export index still holds a reservation after every save finished");
+        }
+
+        double seconds = elapsedNanos / 1e9;
+        Map<String, Object> report = new LinkedHashMap<String, Object>();
+        report.put("options", new LinkedHashMap<String, Object>(options));
+        report.put("requests", snapshot.size());
+        report.put("saved", outcomes[SAVED]);
+        report.put("failed", outcomes[FAILED]);
+        report.put("rejected", outcomes[REJECTED]);
+        report.put("replacedByForeign", countRetired(snapshot));
+        report.put("errorsReported", bridge.getErrorCount());
+        report.put("filesProduced", files != null ? files.length : 0);
+        report.put("lost", lost);
+        report.put("corrupted", corrupted);
+        report.put("collisions", collisions);
+        report.put("failedValid", failedValid);
+        report.put("acceptedMalformed", acceptedMalformed);
+        report.put("leftovers", leftovers.size());
+        report.put("indexReleased", indexReleased);
+        report.put("elapsedMs", elapsedNanos / 1000000L);
+        report.put("requestsPerSecond", round(snapshot.size() / seconds));
+        report.put("savedMegabytesPerSecond", round(savedBytes / 1048576.0 / seconds));
+        report.put("heapBeforeMb", round(heapBefore / 1048576.0));
+        report.put("peakHeapMb", round(peakHeap.get() / 1048576.0));
+        report.put("threadsBefore", threadsBefore);
+        report.put("peakThreads", peakThreads);
+        Map<String, Object> latencyReport = new LinkedHashMap<String, Object>();
+        for (Map.Entry<String, List<Long>> entry : latencies.entrySet()) {
+            latencyReport.put(entry.getKey(), percentiles(entry.getValue()));
+        }
+        report.put("latencyMs", latencyReport);
+
+        String json = toJson(report);
+        System.out.println(json);
+        for (String problem : problems) {
+            System.err.println(problem);
+        }
+        File reportFile = new File(options.get("report"));
+        File parent = reportFile.getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        Writer writer = new FileWriter(reportFile);
+        try {
+            writer.write(json);
+            writer.write('\n');
+        } finally {
+            writer.close();
+        }
+        return problems.isEmpty();
+    }
+
+    private Thread startHeapSampler(final MemoryMXBean memory) {
+        Thread sampler = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!Thread.currentThread().isInterrupted()) {
+                    long used = memory.getHeapMemoryUsage().getUsed();
+                    if (used > peakHeap.get()) {
+                        peakHeap.set(used);
+                    }
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }, "heap-sampler");
+        sampler.setDaemon(true);
+        sampler.start();
+        return sampler;
+    }
+
+    private int intOption(String name) {
+        return Integer.parseInt(options.get(name));
+    }
+
+    private static Map<String, Object> percentiles(List<Long> values) {
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put("count", values.size());
+        if (values.isEmpty()) {
+            return result;
+        }
+        Long[] sorted = values.toArray(new Long[0]);
+        Arrays.sort(sorted);
+        result.put("p50", sorted[(sorted.length - 1) / 2]);
+        result.put("p95", sorted[(int) Math.ceil(sorted.length * 0.95) - 1]);
+        result.put("max", sorted[sorted.length - 1]);
+        return result;
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 100.0) / 100.0;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static String toJson(Object value) {
+        if (value instanceof Map) {
+            StringBuilder builder = new StringBuilder("{");
+            for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+                if (builder.length() > 1) {
+                    builder.append(',');
+                }
+                builder.append(toJson(entry.getKey())).append(':').append(toJson(entry.getValue()));
+            }
+            return builder.append('}').toString();
+        }
+        if (value instanceof String) {
+            return "\"" + ((String) value).replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+        }
+        return String.valueOf(value);
+    }
+
+    /**
+     * Lets a foreign writer replace target if a finished request owns it.
+     * Its content is checked first since it will be gone by verify().
+     */
+    private boolean retire(File target) {
+        List<Request> snapshot;
+        synchronized (requests) {
+            snapshot = new ArrayList<Request>(requests);
+        }
+        for (Request request : snapshot) {
+            if (request.outcome == SAVED && !request.retired && target.equals(request.file)) {
+                try {
+                    request.intactWhenRetired = target.length() == request.size
+                            && Arrays.equals(request.digest, sha1(target));
+                } catch (IOException e) {
+                    request.intactWhenRetired = false;
+                }
+                request.retired = true;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int countRetired(List<Request> requests) {
+        int count = 0;
+        for (Request request : requests) {
+            if (request.retired) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static byte[] sha1(byte[] data) {
+        MessageDigest digest = newSha1();
+        return digest.digest(data);
+    }
+
+    private static byte[] sha1(File file) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        MessageDigest digest = newSha1();
+        InputStream input = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            input.close();
+        }
+        return digest.digest();
+    }
+
+    private static MessageDigest newSha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static final class Request {
+        final int id;
+        final int kind;
+        final int size;
+        final boolean corrupt;
+        byte[] digest;
+        long startedAt = System.nanoTime();
+        volatile int outcome = PENDING;
+        volatile File file;
+        volatile long latencyNanos;
+        volatile boolean retired;
+        volatile boolean intactWhenRetired;
+
+        Request(int id, int kind, int size, boolean corrupt) {
+            this.id = id;
+            this.kind = kind;
+            this.size = size;
+            this.corrupt = corrupt;
+        }
+
+        void start() {
+            startedAt = System.nanoTime();
+        }
+
+        void finish(int outcome, File file) {
+            this.latencyNanos = System.nanoTime() - startedAt;
+            this.file = file;
+            this.outcome = outcome;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "#%d %s %d bytes%s -> %s", id, KINDS[kind], size,
+                    corrupt ? " (malformed)" : "", file != null ? file.getName() : "no file");
+        }
+    }
+
+    /** Parses "value:weight,value:weight" and picks values in proportion to their weight. */
+    private static final class Weighted {
+        private final String[] values;
+        private final int[] cumulative;
+
+        Weighted(String spec) {
+            String[] parts = spec.split(",");
+            values = new String[parts.length];
+            cumulative = new int[parts.length];
+            int total = 0;
+            for (int i = 0; i < parts.length; i++) {
+                int colon = parts[i].lastIndexOf(':');
+                values[i] = colon < 0 ? parts[i].trim() : parts[i].substring(0, colon).trim();
+                total += colon < 0 ? 1 : Integer.parseInt(parts[i].substring(colon + 1).trim());
+                cumulative[i] = total;
+            }
+        }
+
+        String pick(Random random) {
+            int roll = random.nextInt(cumulative[cumulative.length - 1]);
+            for (int i = 0; i < cumulative.length; i++) {
+                if (roll < cumulative[i]) {
+                    return values[i];
+                }
+            }
+            return values[values.length - 1];
+        }
+    }
+}
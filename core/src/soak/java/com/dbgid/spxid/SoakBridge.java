@@ -0,0 +1,111 @@
+package com.dbgid.spxid;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * MainActivity.BlobDownloadInterface without the Activity: the same core
+ * classes, wired the way the app wires them. The export index runs without
+ * a watcher, the worst case of an observer that misses every event.
+ */
+final class SoakBridge {
+
+    /** MainActivity.BLOB_CHUNK_SIZE, the slice the injected script reads per appendChunk. */
+    static final int BLOB_CHUNK_SIZE = 384 * 1024;
+    static final String MIME_TYPE = "application/octet-stream";
+    static final String EXTENSION = "bin";
+
+    private final IoScheduler scheduler;
+    private final File dir;
+    private final File foreignDir;
+    private final ExportDirectoryIndex exportIndex;
+    private final ChunkedBlobWriter chunkedBlobWriter;
+    private final AtomicLong errors = new AtomicLong();
+
+    SoakBridge(File dir, IoScheduler scheduler) {
+        this.scheduler = scheduler;
+        this.dir = dir;
+        this.foreignDir = new File(dir.getParentFile(), dir.getName() + "-foreign");
+        this.exportIndex = new ExportDirectoryIndex(dir, null);
+        this.chunkedBlobWriter = new ChunkedBlobWriter(null, exportIndex);
+    }
+
+    /** saveBase64: returns false for "busy", when the save lane is full; the page retries. */
+    boolean saveBase64(String base64Data, String fileName, Base64SaveTask.Callback callback)
+            throws InterruptedException {
+        String safeName = FileNames.ensure(fileName, EXTENSION);
+        Runnable task = new Base64SaveTask(base64Data, safeName, MIME_TYPE, exportIndex, callback);
+        return scheduler.submit(this, "saveBase64:" + safeName, task, 0L) != null;
+    }
+
+    /**
+     * requestBlobDownload as the injected script carries it out: openChunked,
+     * one appendChunk per base64 encoded slice, then commitChunked, or
+     * abortChunked when a chunk is refused. corruptChunk (or -1) truncates
+     * that chunk the way a broken FileReader result would.
+     */
+    File requestBlobDownload(byte[] payload, String fileName, int corruptChunk) throws IOException {
+        String handle = chunkedBlobWriter.open(FileNames.ensure(fileName, EXTENSION), MIME_TYPE,
+                payload.length);
+        int chunk = 0;
+        for (int offset = 0; offset < payload.length; offset += BLOB_CHUNK_SIZE, chunk++) {
+            byte[] slice = Arrays.copyOfRange(payload, offset, Math.min(payload.length, offset + BLOB_CHUNK_SIZE));
+            String base64 = Base64.getEncoder().encodeToString(slice);
+            if (chunk == corruptChunk) {
+                base64 = BridgeSoak.corrupt(base64);
+            }
+            if (!chunkedBlobWriter.append(handle, base64)) {
+                chunkedBlobWriter.abort(handle);
+                return null;
+            }
+        }
+        ChunkedBlobWriter.Session session = chunkedBlobWriter.commit(handle);
+        return session != null ? session.target : null;
+    }
+
+    void onError(String message) {
+        errors.incrementAndGet();
+    }
+
+    long getErrorCount() {
+        return errors.get();
+    }
+
+    /**
+     * Another app deleting an export and writing its own file under the same
+     * name: the watcher reports the delete but misses the create. Done under
+     * the index's lock so it cannot race a bridge save. Returns null, writing
+     * nothing, unless retire accepts the current file.
+     */
+    File replaceForeign(byte[] payload, String fileName, FileFilter retire) throws IOException {
+        if (!foreignDir.isDirectory() && !foreignDir.mkdirs()) {
+            throw new IOException("Cannot create " + foreignDir);
+        }
+        File temp = File.createTempFile("foreign", ".tmp", foreignDir);
+        FileIo.write(temp, payload);
+        synchronized (exportIndex) {
+            File target = new File(dir, FileNames.ensure(fileName, EXTENSION));
+            if (!target.isFile() || !retire.accept(target)) {
+                temp.delete();
+                return null;
+            }
+            target.delete();
+            exportIndex.onFileRemoved(target.getName());
+            if (!temp.renameTo(target)) {
+                temp.delete();
+                throw new IOException("Cannot move " + temp + " to " + target);
+            }
+            return target;
+        }
+    }
+
+    /** GlobalApplication's onTrimMemory hook; loads the index first so there is something to drop. */
+    long trimMemory() {
+        exportIndex.list(ExportDirectoryIndex.SORT_NAME);
+        return exportIndex.releaseMemory();
+    }
+}
@@ -0,0 +1,109 @@
+package com.dbgid.spxid;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Base64;
+import java.util.Random;
+import org.junit.Test;
+
+public class Base64DecoderTest {
+
+    @Test
+    public void decodesPaddedInput() throws IOException {
+        assertDecodes("", "");
+        assertDecodes("f", "Zg==");
+        assertDecodes("fo", "Zm8=");
+        assertDecodes("foo", "Zm9v");
+        assertDecodes("foob", "Zm9vYg==");
+        assertDecodes("fooba", "Zm9vYmE=");
+        assertDecodes("foobar", "Zm9vYmFy");
+    }
+
+    @Test
+    public void acceptsMissingPadding() throws IOException {
+        assertDecodes("f", "Zg");
+        assertDecodes("fo", "Zm8");
+        assertDecodes("foob", "Zm9vYg");
+        assertDecodes("fooba", "Zm9vYmE");
+    }
+
+    @Test
+    public void rejectsHalfThePadding() {
+        assertRejected("Zg=");
+    }
+
+    @Test
+    public void skipsLineBreaksAndWhitespace() throws IOException {
+        assertDecodes("foobar", "Zm9v\r\nYmFy\n");
+        assertDecodes("foobar", " Zm 9v\tYm Fy ");
+        assertDecodes("fo", "Zm8=\n");
+        assertDecodes("f", "Zg=\r\n=");
+    }
+
+    @Test
+    public void skipsCharactersOutsideTheAlphabet() throws IOException {
+        assertDecodes("foobar", "Zm9v!YmFy");
+        assertDecodes("foobar", "Zm9v\u00e9YmFy\u20ac");
+    }
+
+    @Test
+    public void rejectsDataAfterPadding() {
+        assertRejected("Zg==Zg==");
+        assertRejected("Zm8=Zm8=");
+        assertRejected("Zg==A");
+    }
+
+    @Test
+    public void rejectsMisplacedPadding() {
+        assertRejected("=Zm9v");
+        assertRejected("Z=m9v");
+    }
+
+    @Test
+    public void rejectsTruncatedInput() {
+        assertRejected("Z");
+        assertRejected("Zm9vY");
+        assertRejected("Zm9vY=");
+    }
+
+    @Test
+    public void matchesTheJdkAcrossChunkBoundaries() throws IOException {
+        Random random = new Random(42);
+        for (int size : new int[]{1, 2, 3, 47, 48 * 1024 - 1, 48 * 1024, 48 * 1024 + 1, 200 * 1024 + 7}) {
+            byte[] data = new byte[size];
+            random.nextBytes(data);
+            String encoded = Base64.getMimeEncoder().encodeToString(data);
+
+            assertArrayEquals(data, Base64Decoder.decode(encoded));
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            assertEquals(size, Base64Decoder.decodeTo(encoded, output));
+            assertArrayEquals(data, output.toByteArray());
+        }
+    }
+
+    private static void assertDecodes(String expected, String input) throws IOException {
+        assertEquals(expected, new String(Base64Decoder.decode(input), "UTF-8"));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        assertEquals(expected.length(), Base64Decoder.decodeTo(input, output));
+        assertEquals(expected, output.toString("UTF-8"));
+    }
+
+    private static void assertRejected(String input) {
+        try {
+            Base64Decoder.decode(input);
+            fail("decode accepted " + input);
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            Base64Decoder.decodeTo(input, new ByteArrayOutputStream());
+            fail("decodeTo accepted " + input);
+        } catch (IllegalArgumentException expected) {
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.dbgid.spxid;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ExportDirectoryIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+    private RecordingWatcher watcher;
+    private ExportDirectoryIndex index;
+
+    @Before
+    public void setUp() {
+        dir = new File(folder.getRoot(), "exports");
+        watcher = new RecordingWatcher();
+        index = new ExportDirectoryIndex(dir, watcher);
+    }
+
+    @Test
+    public void allocateSuffixesTakenNames() throws IOException {
+        File first = index.allocate("resi.xlsx");
+        File second = index.allocate("resi.xlsx");
+        File third = index.allocate("resi.xlsx");
+
+        assertEquals("resi.xlsx", first.getName());
+        assertEquals("resi(1).xlsx", second.getName());
+        assertEquals("resi(2).xlsx", third.getName());
+        assertTrue(watcher.started);
+    }
+
+    @Test
+    public void allocateContinuesAfterHighestSuffixOnDisk() throws IOException {
+        dir.mkdirs();
+        FileIo.write(new File(dir, "resi.xlsx"), new byte[1]);
+        FileIo.write(new File(dir, "resi(41).xlsx"), new byte[1]);
+
+        assertEquals("resi(42).xlsx", index.allocate("resi.xlsx").getName());
+    }
+
+    @Test
+    public void allocateSkipsFilesTheWatcherMissed() throws IOException {
+        File first = index.allocate("resi.xlsx");
+        FileIo.write(first, new byte[1]);
+        first.delete();
+        index.onFileRemoved(first.getName());
+        // Recreated by another app; no onFileChanged arrives.
+        FileIo.write(first, new byte[]{7});
+
+        File next = index.allocate("resi.xlsx");
+
+        assertNotEquals(first, next);
+        assertEquals(1, new File(dir, "resi.xlsx").length());
+    }
+
+    @Test
+    public void allocateSkipsNamesWithPartialFiles() throws IOException {
+        dir.mkdirs();
+        FileIo.write(new File(dir, "resi.xlsx.part"), new byte[1]);
+
+        assertEquals("resi(1).xlsx", index.allocate("resi.xlsx").getName());
+    }
+
+    @Test
+    public void releaseGivesBackAFailedReservation() throws IOException {
+        File reserved = index.allocate("resi.xlsx");
+        index.release(reserved);
+
+        assertEquals("resi.xlsx", index.allocate("resi.xlsx").getName());
+    }
+
+    @Test
+    public void releaseMemoryWaitsForPendingReservations() throws IOException {
+        FileIo.write(index.allocate("resi.xlsx"), new byte[1]);
+        File reserved = index.allocate("resi.xlsx");
+
+        assertEquals(0L, index.releaseMemory());
+        assertFalse(watcher.stopped);
+
+        index.release(reserved);
+        assertTrue(index.releaseMemory() > 0L);
+        assertTrue(watcher.stopped);
+    }
+
+    @Test
+    public void reservationsSurviveARescan() throws IOException {
+        File reserved = index.allocate("resi.xlsx");
+        index.onDirectoryGone();
+
+        assertNotEquals(reserved, index.allocate("resi.xlsx"));
+    }
+
+    @Test
+    public void listFollowsWatcherEvents() throws IOException {
+        File saved = index.allocate("a.xlsx");
+        FileIo.write(saved, new byte[3]);
+        index.onFileChanged(saved.getName());
+        File partial = new File(dir, "b.xlsx.part");
+        FileIo.write(partial, new byte[1]);
+        index.onFileChanged(partial.getName());
+
+        List<ExportDirectoryIndex.Entry> entries = index.list(ExportDirectoryIndex.SORT_NAME);
+        assertEquals(1, entries.size());
+        assertEquals("a.xlsx", entries.get(0).name);
+        assertEquals(3L, entries.get(0).size);
+
+        index.onFileRemoved(saved.getName());
+        assertTrue(index.list(ExportDirectoryIndex.SORT_NAME).isEmpty());
+    }
+
+    private static final class RecordingWatcher implements ExportDirectoryIndex.Watcher {
+        boolean started;
+        boolean stopped;
+
+        @Override
+        public void start(File dir, ExportDirectoryIndex index) {
+            started = true;
+            stopped = false;
+        }
+
+        @Override
+        public void stop() {
+            stopped = true;
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package com.dbgid.spxid;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * The start-up warm-up against a local HTTPS server behind a proxy that
+ * delays every read by DELAY_MS, so a TLS handshake costs what it would on
+ * a mobile network. PageServer stands in for the site because the JDK's
+ * HttpServer drops the connection after a HEAD, which is what preconnect
+ * sends.
+ */
+public class HttpAssetCacheLatencyTest {
+
+    private static final int DELAY_MS = 60;
+    private static final String PAGE = "<html><body>SPX</body></html>";
+    private static final String USER_AGENT = "Mozilla/5.0 (Linux; Android 9; wv) Chrome/120.0 Mobile";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private PageServer server;
+    private SSLSocketFactory defaultSocketFactory;
+    private LatencyProxy coldProxy;
+    private LatencyProxy warmProxy;
+    private HttpAssetCache cache;
+    private final AtomicInteger pageRequests = new AtomicInteger();
+    private final AtomicReference<String> lastUserAgent = new AtomicReference<String>();
+
+    @Before
+    public void setUp() throws Exception {
+        char[] password = "changeit".toCharArray();
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        InputStream input = getClass().getResourceAsStream("/localhost.p12");
+        try {
+            keyStore.load(input, password);
+        } finally {
+            input.close();
+        }
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, password);
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(keyStore);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers.getKeyManagers(), trustManagers.getTrustManagers(), null);
+        defaultSocketFactory = HttpsURLConnection.getDefaultSSLSocketFactory();
+        HttpsURLConnection.setDefaultSSLSocketFactory(context.getSocketFactory());
+
+        server = new PageServer((SSLServerSocket) context.getServerSocketFactory()
+                .createServerSocket(0, 50, InetAddress.getLoopbackAddress()));
+        coldProxy = new LatencyProxy(server.getPort());
+        warmProxy = new LatencyProxy(server.getPort());
+        cache = new HttpAssetCache(folder.newFolder("web-assets"), 1024L * 1024L);
+    }
+
+    @After
+    public void tearDown() {
+        coldProxy.close();
+        warmProxy.close();
+        server.close();
+        HttpsURLConnection.setDefaultSSLSocketFactory(defaultSocketFactory);
+    }
+
+    @Test
+    public void preconnectLeavesAConnectionForThePageLoad() {
+        long coldStartedAt = System.nanoTime();
+        assertNotNull(cache.fetchOnce(coldProxy.url("/"), null, new File(folder.getRoot(), "cold")));
+        long coldMillis = (System.nanoTime() - coldStartedAt) / 1000000L;
+
+        assertEquals(200, HttpAssetCache.preconnect(warmProxy.url("/"), null));
+        long warmStartedAt = System.nanoTime();
+        assertNotNull(cache.fetchOnce(warmProxy.url("/"), null, new File(folder.getRoot(), "warm")));
+        long warmMillis = (System.nanoTime() - warmStartedAt) / 1000000L;
+
+        assertEquals(1, warmProxy.connections.get());
+        assertTrue("cold " + coldMillis + " ms, warm " + warmMillis + " ms", warmMillis < coldMillis);
+    }
+
+    @Test
+    public void prefetchSendsTheWebViewUserAgentAndServesFromDisk() throws IOException {
+        File target = new File(folder.getRoot(), "prefetch/page");
+        HttpAssetCache.Entry entry = cache.fetchOnce(warmProxy.url("/"),
+                Collections.singletonMap("User-Agent", USER_AGENT), target);
+
+        assertNotNull(entry);
+        assertEquals(USER_AGENT, lastUserAgent.get());
+        assertEquals("text/html", entry.getMimeType());
+        assertEquals(PAGE.length(), target.length());
+        // Served from the file: the page load costs no round trip.
+        long startedAt = System.nanoTime();
+        assertEquals(PAGE, new String(read(entry.body), "UTF-8"));
+        assertTrue((System.nanoTime() - startedAt) / 1000000L < DELAY_MS);
+        assertEquals(1, pageRequests.get());
+        assertNull(cache.get(warmProxy.url("/")));
+    }
+
+    @Test
+    public void prefetchDropsARedirect() {
+        File target = new File(folder.getRoot(), "moved");
+
+        assertNull(cache.fetchOnce(warmProxy.url("/moved"), null, target));
+        assertTrue(!target.exists());
+        assertEquals(1, pageRequests.get());
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream input = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                int read = input.read(data, offset, data.length - offset);
+                if (read == -1) {
+                    break;
+                }
+                offset += read;
+            }
+        } finally {
+            input.close();
+        }
+        return data;
+    }
+
+    /** Keep-alive HTTPS: "/" is the page, "/moved" redirects to it. */
+    private final class PageServer implements Runnable {
+        private final SSLServerSocket serverSocket;
+
+        PageServer(SSLServerSocket serverSocket) {
+            this.serverSocket = serverSocket;
+            Thread thread = new Thread(this, "page-server");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            while (!serverSocket.isClosed()) {
+                final Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            serve(socket);
+                        } catch (IOException ignored) {
+                        } finally {
+                            FileIo.closeQuietly(socket);
+                        }
+                    }
+                }, "page-connection");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        void close() {
+            FileIo.closeQuietly(serverSocket);
+        }
+
+        private void serve(Socket socket) throws IOException {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+            OutputStream output = socket.getOutputStream();
+            String requestLine;
+            while ((requestLine = reader.readLine()) != null) {
+                String[] parts = requestLine.split(" ");
+                String userAgent = null;
+                String line;
+                while ((line = reader.readLine()) != null && line.length() > 0) {
+                    if (line.regionMatches(true, 0, "User-Agent:", 0, 11)) {
+                        userAgent = line.substring(11).trim();
+                    }
+                }
+                byte[] body = PAGE.getBytes("UTF-8");
+                String head;
+                if ("/moved".equals(parts[1])) {
+                    head = "HTTP/1.1 302 Found\r\nLocation: /\r\nContent-Length: 0\r\n";
+                    body = new byte[0];
+                } else {
+                    head = "HTTP/1.1 200 OK\r\nContent-Type: text/html; charset=utf-8\r\n"
+                            + "Cache-Control: no-cache\r\nContent-Length: " + body.length + "\r\n";
+                }
+                if ("HEAD".equals(parts[0])) {
+                    body = new byte[0];
+                } else {
+                    pageRequests.incrementAndGet();
+                    lastUserAgent.set(userAgent);
+                }
+                output.write((head + "\r\n").getBytes("ISO-8859-1"));
+                output.write(body);
+                output.flush();
+            }
+        }
+    }
+
+    /** Forwards to the server, holding every chunk for DELAY_MS in both directions. */
+    private static final class LatencyProxy implements Runnable {
+        final AtomicInteger connections = new AtomicInteger();
+        private final ServerSocket serverSocket;
+        private final int targetPort;
+
+        LatencyProxy(int targetPort) throws IOException {
+            this.targetPort = targetPort;
+            this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            Thread thread = new Thread(this, "latency-proxy");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        String url(String path) {
+            return "https://127.0.0.1:" + serverSocket.getLocalPort() + path;
+        }
+
+        @Override
+        public void run() {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket client = serverSocket.accept();
+                    connections.incrementAndGet();
+                    Socket upstream = new Socket(InetAddress.getLoopbackAddress(), targetPort);
+                    pump(client, upstream);
+                    pump(upstream, client);
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        void close() {
+            try {
+                serverSocket.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        private static void pump(final Socket from, final Socket to) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] buffer = new byte[16 * 1024];
+                    try {
+                        InputStream input = from.getInputStream();
+                        OutputStream output = to.getOutputStream();
+                        int read;
+                        while ((read = input.read(buffer)) != -1) {
+                            Thread.sleep(DELAY_MS);
+                            output.write(buffer, 0, read);
+                            output.flush();
+                        }
+                    } catch (IOException ignored) {
+                    } catch (InterruptedException ignored) {
+                    } finally {
+                        FileIo.closeQuietly(from);
+                        FileIo.closeQuietly(to);
+                    }
+                }
+            }, "latency-pump");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package com.dbgid.spxid;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HttpAssetCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private String base;
+    private HttpAssetCache cache;
+    private final Map<String, AtomicInteger> requests = new ConcurrentHashMap<String, AtomicInteger>();
+    private final Map<String, String> lastCookie = new ConcurrentHashMap<String, String>();
+    private final AtomicInteger lastStatus = new AtomicInteger();
+    private final CountDownLatch slowRest = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        base = "http://127.0.0.1:" + server.getAddress().getPort();
+        cache = new HttpAssetCache(folder.newFolder("web-assets"), 1024L * 1024L);
+
+        serve("/app.js", new Response(200, "console.log(1);").header("Content-Type",
+                "application/javascript; charset=utf-8").header("ETag", "\"v1\""));
+        serve("/private.js", new Response(200, "secret").header("Cache-Control", "private, max-age=60"));
+        serve("/session.css", new Response(200, "body{}").header("Set-Cookie", "sid=1"));
+        serve("/vary.css", new Response(200, "body{}").header("Vary", "Accept-Encoding, Cookie"));
+        serve("/moved.js", new Response(302, "").header("Location", "/login.js"));
+        serve("/login.js", new Response(200, "login()"));
+        serve("/big.png", new Response(200, new String(new char[600 * 1024])));
+        serve("/other.png", new Response(200, new String(new char[600 * 1024])));
+        // Sends "head-", then holds the rest until the test releases it.
+        server.createContext("/slow.js", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().add("Content-Type", "application/javascript");
+                exchange.sendResponseHeaders(200, 0);
+                OutputStream output = exchange.getResponseBody();
+                output.write("head-".getBytes("UTF-8"));
+                output.flush();
+                try {
+                    slowRest.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ignored) {
+                }
+                output.write("tail".getBytes("UTF-8"));
+                output.close();
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void jsonIsNotAStaticAsset() {
+        assertFalse(HttpAssetCache.hasCacheableExtension("/api/orders.json"));
+        assertFalse(HttpAssetCache.hasCacheableExtension("/v1.2/orders"));
+        assertTrue(HttpAssetCache.hasCacheableExtension("/static/app.JS"));
+        assertTrue(HttpAssetCache.hasCacheableExtension("/model/eng.traineddata"));
+    }
+
+    @Test
+    public void storesAndServesAShareableResponse() {
+        HttpAssetCache.Entry fetched = cache.fetch(base + "/app.js", null, null);
+
+        assertNotNull(fetched);
+        HttpAssetCache.Entry entry = cache.get(base + "/app.js");
+        assertNotNull(entry);
+        assertEquals("application/javascript", entry.getMimeType());
+        assertEquals("utf-8", entry.getEncoding());
+        assertEquals("\"v1\"", header(entry, "ETag"));
+        assertEquals("console.log(1);".length(), entry.body.length());
+        assertEquals(1, count("/app.js"));
+    }
+
+    @Test
+    public void forwardsTheWebViewsCookie() {
+        cache.fetch(base + "/app.js", null, Collections.singletonMap("Cookie", "sid=abc"));
+
+        assertEquals("sid=abc", lastCookie.get("/app.js"));
+    }
+
+    @Test
+    public void dropsRangeAndValidatorHeadersFromTheWebView() {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Range", "bytes=0-3");
+        headers.put("If-None-Match", "\"stale\"");
+        headers.put("Accept-Encoding", "gzip");
+
+        assertNotNull(cache.fetch(base + "/app.js", null, headers));
+        assertEquals("console.log(1);".length(), cache.get(base + "/app.js").body.length());
+    }
+
+    @Test
+    public void neverStoresPerSessionResponses() {
+        assertNull(cache.fetch(base + "/private.js", null, null));
+        assertNull(cache.fetch(base + "/session.css", null, null));
+        assertNull(cache.fetch(base + "/vary.css", null, null));
+
+        assertNull(cache.get(base + "/private.js"));
+        assertNull(cache.get(base + "/session.css"));
+        assertNull(cache.get(base + "/vary.css"));
+        assertTrue(cache.isUncacheable(base + "/session.css"));
+        assertFalse(cache.isUncacheable(base + "/app.js"));
+    }
+
+    @Test
+    public void neverStoresARedirect() {
+        assertNull(cache.fetch(base + "/moved.js", null, null));
+
+        assertNull(cache.get(base + "/moved.js"));
+        assertEquals(0, count("/login.js"));
+    }
+
+    @Test
+    public void streamsTheBodyBeforeTheResponseIsComplete() throws IOException {
+        HttpAssetCache.Download download = cache.fetchStreaming(base + "/slow.js", null);
+        assertNotNull(download);
+        try {
+            byte[] head = new byte[5];
+            int read = 0;
+            while (read < head.length) {
+                read += download.read(head, read, head.length - read);
+            }
+            assertEquals("head-", new String(head, "UTF-8"));
+            assertNull(cache.get(base + "/slow.js"));
+
+            slowRest.countDown();
+            assertEquals("tail", readAll(download));
+        } finally {
+            download.close();
+        }
+        HttpAssetCache.Entry stored = cache.get(base + "/slow.js");
+        assertNotNull(stored);
+        assertEquals("head-tail".length(), stored.body.length());
+        assertEquals("application/javascript", stored.getMimeType());
+    }
+
+    @Test
+    public void closingAStreamEarlyStoresNothing() throws IOException {
+        HttpAssetCache.Download download = cache.fetchStreaming(base + "/slow.js", null);
+        assertNotNull(download);
+        assertTrue(download.read() != -1);
+        download.close();
+        slowRest.countDown();
+
+        assertNull(cache.get(base + "/slow.js"));
+        assertEquals(0L, cache.getTotalBytes());
+        assertEquals(0, new File(folder.getRoot(), "web-assets").list().length);
+    }
+
+    @Test
+    public void neverStreamsAPerSessionResponse() {
+        assertNull(cache.fetchStreaming(base + "/session.css", null));
+        assertNull(cache.fetchStreaming(base + "/moved.js", null));
+
+        assertTrue(cache.isUncacheable(base + "/session.css"));
+        assertEquals(0, count("/login.js"));
+    }
+
+    @Test
+    public void revalidatesWithTheStoredEtag() {
+        HttpAssetCache.Entry first = cache.fetch(base + "/app.js", null, null);
+        long storedAt = first.getStoredAt();
+
+        HttpAssetCache.Entry revalidated = cache.fetch(base + "/app.js", cache.get(base + "/app.js"), null);
+
+        assertNotNull(revalidated);
+        assertEquals(2, count("/app.js"));
+        assertEquals(304, lastStatus.get());
+        assertTrue(cache.get(base + "/app.js").getStoredAt() >= storedAt);
+        assertEquals("console.log(1);".length(), cache.get(base + "/app.js").body.length());
+    }
+
+    @Test
+    public void trimsTheLeastRecentlyUsedEntry() {
+        assertNotNull(cache.fetch(base + "/big.png", null, null));
+        assertNotNull(cache.fetch(base + "/other.png", null, null));
+
+        assertNull(cache.get(base + "/big.png"));
+        assertNotNull(cache.get(base + "/other.png"));
+        assertTrue(cache.getTotalBytes() <= 1024L * 1024L);
+    }
+
+    @Test
+    public void loadIndexRestoresEntriesFromDisk() throws IOException {
+        File dir = folder.newFolder("reload");
+        new HttpAssetCache(dir, 1024L * 1024L).fetch(base + "/app.js", null, null);
+
+        HttpAssetCache reopened = new HttpAssetCache(dir, 1024L * 1024L);
+        reopened.loadIndex();
+
+        assertEquals("console.log(1);".length(), reopened.getTotalBytes());
+        assertNotNull(reopened.get(base + "/app.js"));
+    }
+
+    private static String readAll(InputStream input) throws IOException {
+        StringBuilder text = new StringBuilder();
+        byte[] buffer = new byte[256];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            text.append(new String(buffer, 0, read, "UTF-8"));
+        }
+        return text.toString();
+    }
+
+    private static String header(HttpAssetCache.Entry entry, String name) {
+        for (Map.Entry<String, String> header : entry.getHeaders().entrySet()) {
+            if (header.getKey().equalsIgnoreCase(name)) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    private int count(String path) {
+        AtomicInteger counter = requests.get(path);
+        return counter != null ? counter.get() : 0;
+    }
+
+    private void serve(final String path, final Response response) {
+        requests.put(path, new AtomicInteger());
+        server.createContext(path, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.get(path).incrementAndGet();
+                String cookie = exchange.getRequestHeaders().getFirst("Cookie");
+                if (cookie != null) {
+                    lastCookie.put(path, cookie);
+                }
+                String etag = response.headers.get("ETag");
+                int status = response.status;
+                if (etag != null && etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    status = 304;
+                }
+                lastStatus.set(status);
+                for (Map.Entry<String, String> header : response.headers.entrySet()) {
+                    exchange.getResponseHeaders().add(header.getKey(), header.getValue());
+                }
+                byte[] body = status == 200 ? response.body.getBytes("UTF-8") : new byte[0];
+                exchange.sendResponseHeaders(status, body.length > 0 ? body.length : -1);
+                OutputStream output = exchange.getResponseBody();
+                output.write(body);
+                output.close();
+            }
+        });
+    }
+
+    private static final class Response {
+        final int status;
+        final String body;
+        final Map<String, String> headers = new HashMap<String, String>();
+
+        Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+
+        Response header(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.dbgid.spxid;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Test;
+
+public class IoSchedulerTest {
+
+    @Test
+    public void cancellingARunningJobKeepsItsPermitUntilItReturns() throws InterruptedException {
+        IoScheduler scheduler = new IoScheduler(1, 1);
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(1);
+        scheduler.setListener(new IoScheduler.Listener() {
+            @Override
+            public void onJobFinished(IoScheduler.Job job) {
+                finished.countDown();
+            }
+        });
+        IoScheduler.Job job = scheduler.submit(this, "busy", new Runnable() {
+            @Override
+            public void run() {
+                running.countDown();
+                // Still holding its payload; ignores the interrupt like a blocking write would.
+                while (true) {
+                    try {
+                        release.await();
+                        return;
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+            }
+        }, 0L);
+        assertNotNull(job);
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+
+        scheduler.cancelAll(this);
+
+        assertTrue(job.isCancelled());
+        assertEquals(1, scheduler.getPendingCount());
+        assertNull(scheduler.submit(this, "next", noop(), 0L));
+
+        release.countDown();
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertNotNull(scheduler.submit(this, "next", noop(), 1000L));
+    }
+
+    @Test
+    public void cancellingAQueuedJobFreesItsPermitAndNeverRunsIt() throws InterruptedException {
+        IoScheduler scheduler = new IoScheduler(1, 2);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicBoolean queuedRan = new AtomicBoolean();
+        scheduler.submit(this, "busy", new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }, 0L);
+        IoScheduler.Job queued = scheduler.submit(this, "queued", new Runnable() {
+            @Override
+            public void run() {
+                queuedRan.set(true);
+            }
+        }, 0L);
+        assertNotNull(queued);
+        assertNull(scheduler.submit(this, "full", noop(), 0L));
+
+        queued.cancel();
+
+        assertEquals(1, scheduler.getPendingCount());
+        assertNotNull(scheduler.submit(this, "after", noop(), 0L));
+        release.countDown();
+        Thread.sleep(200);
+        assertFalse(queuedRan.get());
+    }
+
+    @Test
+    public void isCancelledIgnoresTheCallersInterruptFlag() throws InterruptedException {
+        IoScheduler scheduler = new IoScheduler(1, 1);
+        IoScheduler.Job job = scheduler.submit(this, "job", noop(), 0L);
+        Thread.currentThread().interrupt();
+        try {
+            assertFalse(job.isCancelled());
+        } finally {
+            Thread.interrupted();
+        }
+    }
+
+    private static Runnable noop() {
+        return new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+    }
+}
@@ -0,0 +1,141 @@
+package com.dbgid.spxid;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+public class XlsxStreamWriterTest {
+
+    @Test
+    public void writesAWorkbookWithOneSheet() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        XlsxStreamWriter writer = new XlsxStreamWriter(output, "Resi SPX");
+        writer.writeRow(new String[]{"No", "Resi"});
+        writer.writeRow(new String[]{"1", "SPXID012345678"});
+        writer.close();
+
+        Map<String, byte[]> entries = unzip(output.toByteArray());
+        assertEquals(new ArrayList<String>(entries.keySet()).toString(), 5, entries.size());
+        assertTrue(entries.containsKey("[Content_Types].xml"));
+        assertTrue(entries.containsKey("_rels/.rels"));
+        assertTrue(entries.containsKey("xl/_rels/workbook.xml.rels"));
+        Element sheet = (Element) parse(entries.get("xl/workbook.xml")).getElementsByTagName("sheet").item(0);
+        assertEquals("Resi SPX", sheet.getAttribute("name"));
+
+        List<List<String>> rows = rows(parse(entries.get("xl/worksheets/sheet1.xml")));
+        assertEquals(2, rows.size());
+        assertEquals("[No, Resi]", rows.get(0).toString());
+        assertEquals("[1, SPXID012345678]", rows.get(1).toString());
+    }
+
+    @Test
+    public void escapesMarkupAndDropsInvalidCharacters() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        XlsxStreamWriter writer = new XlsxStreamWriter(output, "a/b:c");
+        writer.writeRow(new String[]{"<b>&\"x\"</b>", "tab\there\u0001", "  spaced  "});
+        writer.close();
+
+        Map<String, byte[]> entries = unzip(output.toByteArray());
+        Element sheet = (Element) parse(entries.get("xl/workbook.xml")).getElementsByTagName("sheet").item(0);
+        assertEquals("a_b_c", sheet.getAttribute("name"));
+        List<String> row = rows(parse(entries.get("xl/worksheets/sheet1.xml"))).get(0);
+        assertEquals("<b>&\"x\"</b>", row.get(0));
+        assertEquals("tab\there", row.get(1));
+        assertEquals("  spaced  ", row.get(2));
+    }
+
+    @Test
+    public void keepsEmptyCellsInPlace() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        XlsxStreamWriter writer = new XlsxStreamWriter(output, null);
+        writer.writeRow(new String[]{"a", null, "", "d"});
+        writer.writeRow(null);
+        writer.close();
+
+        Document sheet = parse(unzip(output.toByteArray()).get("xl/worksheets/sheet1.xml"));
+        List<List<String>> rows = rows(sheet);
+        assertEquals("[a, , , d]", rows.get(0).toString());
+        assertEquals(0, rows.get(1).size());
+        assertEquals("2", ((Element) sheet.getElementsByTagName("row").item(1)).getAttribute("r"));
+    }
+
+    @Test
+    public void streamsLargeSheets() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        XlsxStreamWriter writer = new XlsxStreamWriter(output, "Resi SPX");
+        for (int i = 0; i < 20000; i++) {
+            writer.writeRow(new String[]{Integer.toString(i + 1), "SPXID" + (40000000000L + i)});
+        }
+        assertEquals(20000, writer.getRowCount());
+        writer.close();
+
+        List<List<String>> rows = rows(parse(unzip(output.toByteArray()).get("xl/worksheets/sheet1.xml")));
+        assertEquals(20000, rows.size());
+        assertEquals("[20000, SPXID40000019999]", rows.get(19999).toString());
+    }
+
+    @Test
+    public void refusesRowsAfterFinish() throws IOException {
+        XlsxStreamWriter writer = new XlsxStreamWriter(new ByteArrayOutputStream(), "Sheet1");
+        writer.finish();
+        try {
+            writer.writeRow(new String[]{"late"});
+            fail();
+        } catch (IOException expected) {
+        }
+        writer.close();
+    }
+
+    private static Map<String, byte[]> unzip(byte[] data) throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(data));
+        try {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                ByteArrayOutputStream content = new ByteArrayOutputStream();
+                FileIo.copy(zip, content);
+                entries.put(entry.getName(), content.toByteArray());
+            }
+        } finally {
+            zip.close();
+        }
+        return entries;
+    }
+
+    private static Document parse(byte[] xml) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        InputStream input = new ByteArrayInputStream(xml);
+        return factory.newDocumentBuilder().parse(input);
+    }
+
+    private static List<List<String>> rows(Document sheet) {
+        List<List<String>> rows = new ArrayList<List<String>>();
+        NodeList rowNodes = sheet.getElementsByTagName("row");
+        for (int i = 0; i < rowNodes.getLength(); i++) {
+            List<String> cells = new ArrayList<String>();
+            NodeList cellNodes = ((Element) rowNodes.item(i)).getElementsByTagName("c");
+            for (int j = 0; j < cellNodes.getLength(); j++) {
+                cells.add(cellNodes.item(j).getTextContent());
+            }
+            rows.add(cells);
+        }
+        return rows;
+    }
+}